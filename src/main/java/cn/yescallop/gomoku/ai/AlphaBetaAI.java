@@ -0,0 +1,390 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.*;
+import cn.yescallop.gomoku.player.PlayerAdapter;
+import cn.yescallop.gomoku.rule.Opening;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A gomoku AI running a negamax alpha-beta search
+ * with iterative deepening.
+ * <p>
+ * With more than one thread, helper threads search the same root
+ * at staggered depths in the manner of Lazy SMP, communicating only
+ * through the shared transposition table, while the move is taken
+ * from the thread completing the deepest iteration.
+ * <p>
+ * With pondering enabled, the position after the move returned is
+ * searched on a background thread while the opponent thinks, and the
+ * results are reused through the transposition table when the next
+ * move is requested.
+ * <p>
+ * The leaves of the search are scored by the shapes of the candidate
+ * moves, or by an {@link NnueNetwork} if one is set.
+ * <p>
+ * Under Renju rules, the forbidden points of Black are never searched
+ * for Black, and a forbidden move of Black left to be reported under
+ * non-strict rules is reported at once. The moves limited to some
+ * areas by the opening of the rule are searched in those areas only.
+ * <p>
+ * The thinking time of a move is allocated by a {@link TimeManager}
+ * from the remaining game time, and the choices and the offered moves
+ * of the openings are decided by a {@link ChoiceEvaluator}.
+ *
+ * @author Scallop Ye
+ */
+public class AlphaBetaAI extends PlayerAdapter {
+
+    /**
+     * The default maximum thinking time of a move.
+     */
+    private static final long DEFAULT_MAX_THINK_MILLIS = 5000;
+
+    /**
+     * The default memory budget in megabytes of the transposition table.
+     */
+    private static final int DEFAULT_HASH_MEGABYTES = 32;
+
+    private final int maxDepth;
+    private final int threads;
+    private final TranspositionTable table;
+    private final TimeManager timeManager;
+
+    private ExecutorService executor;
+    private ChoiceEvaluator evaluator;
+
+    private OpeningBook book;
+    private boolean bookActive;
+
+    private NnueNetwork network;
+    private NnueNetwork activeNetwork;
+
+    private boolean pondering;
+    private ExecutorService ponderExecutor;
+    private Searcher ponderSearcher;
+    private Future<?> ponderFuture;
+    private long lastPonderNodes;
+
+    /**
+     * The move orderers of the search threads, kept across moves.
+     */
+    private MoveOrderer[] orderers;
+
+    private Game game;
+    private Board board;
+    private Rule.Type ruleType;
+    private Opening opening;
+
+    private int lastDepth;
+    private long lastNodes;
+    private long lastNodesPerSecond;
+
+    public AlphaBetaAI() {
+        this(DEFAULT_MAX_THINK_MILLIS, Searcher.MAX_PLY);
+    }
+
+    /**
+     * Creates an alpha-beta AI.
+     *
+     * @param maxThinkMillis the maximum thinking time of a move.
+     * @param maxDepth the maximum search depth.
+     */
+    public AlphaBetaAI(long maxThinkMillis, int maxDepth) {
+        this(maxThinkMillis, maxDepth, DEFAULT_HASH_MEGABYTES);
+    }
+
+    /**
+     * Creates an alpha-beta AI.
+     *
+     * @param maxThinkMillis the maximum thinking time of a move.
+     * @param maxDepth the maximum search depth.
+     * @param hashMegabytes the memory budget in megabytes of the transposition table.
+     */
+    public AlphaBetaAI(long maxThinkMillis, int maxDepth, int hashMegabytes) {
+        this(maxThinkMillis, maxDepth, hashMegabytes, 1);
+    }
+
+    /**
+     * Creates an alpha-beta AI.
+     *
+     * @param maxThinkMillis the maximum thinking time of a move.
+     * @param maxDepth the maximum search depth.
+     * @param hashMegabytes the memory budget in megabytes of the transposition table.
+     * @param threads the count of search threads, including the thread requested.
+     */
+    public AlphaBetaAI(long maxThinkMillis, int maxDepth, int hashMegabytes, int threads) {
+        super("Alpha-Beta Gomoku AI");
+        if (maxThinkMillis <= 0)
+            throw new IllegalArgumentException("maxThinkMillis <= 0");
+        if (maxDepth < 1)
+            throw new IllegalArgumentException("maxDepth < 1");
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1");
+        this.maxDepth = maxDepth;
+        this.threads = threads;
+        table = new TranspositionTable(hashMegabytes);
+        timeManager = new TimeManager(maxThinkMillis);
+    }
+
+    /**
+     * Sets the opening book consulted before searching,
+     * taking effect from the next game.
+     *
+     * @param book the book, or null for none.
+     */
+    public void setOpeningBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    /**
+     * Sets the network scoring the leaves of the search instead of
+     * the shapes, taking effect from the next game. A network of
+     * another board size is not used.
+     *
+     * @param network the network, or null for none.
+     */
+    public void setNetwork(NnueNetwork network) {
+        this.network = network;
+    }
+
+    /**
+     * Sets whether to ponder on the opponent's time,
+     * taking effect from the next game.
+     *
+     * @param pondering whether to ponder.
+     */
+    public void setPondering(boolean pondering) {
+        this.pondering = pondering;
+    }
+
+    @Override
+    public void gameStarted(Game game) {
+        Rule.Type type = game.rule().type();
+        this.game = game;
+        board = game.board();
+        ruleType = type;
+        // A separate instance, only asked for the area limits
+        opening = game.rule().newOpening();
+        table.clear();
+        timeManager.reset(game, side);
+        bookActive = book != null && book.boardSize() == board.size() && book.ruleType() == type;
+        activeNetwork = network != null && network.boardSize() == board.size() ? network : null;
+        orderers = new MoveOrderer[threads];
+        for (int i = 0; i < threads; i++) {
+            orderers[i] = new MoveOrderer(board.size(), type, Searcher.MAX_PLY);
+        }
+        // Runs the helpers, or the searches of the choices
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(Math.max(1, threads - 1), r -> {
+            Thread t = new Thread(r, "Alpha-Beta-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        evaluator = new ChoiceEvaluator(type, opening, table, executor);
+        if (pondering) {
+            ponderExecutor = Executors.newSingleThreadExecutor(r -> {
+                Thread t = new Thread(r, "Alpha-Beta-Ponder");
+                t.setDaemon(true);
+                return t;
+            });
+        }
+    }
+
+    @Override
+    public void gameEnded(Result result) {
+        if (ponderSearcher != null)
+            ponderSearcher.stop();
+        if (ponderExecutor != null) {
+            ponderExecutor.shutdownNow();
+            ponderExecutor = null;
+        }
+        ponderSearcher = null;
+        ponderFuture = null;
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    @Override
+    public void opponentMoveMade(Move move) {
+        stopPondering();
+    }
+
+    @Override
+    public Move requestMove(Move.Attribute attr, long timeoutMillis) throws Exception {
+        long startTime = System.nanoTime();
+        timeManager.start(timeoutMillis);
+        long deadline = timeManager.hardDeadline();
+        stopPondering();
+        if (attr.isMultiple()) {
+            int move = evaluator.chooseOffer(board, timeManager.softDeadline());
+            timeManager.finish();
+            int size = board.size();
+            return move == -1 ? null : Move.ofPoint(move % size, move / size);
+        }
+        Board.Grid forbiddenMove = GomokuUtil.forbiddenMoveToReport(game);
+        if (forbiddenMove != null) {
+            timeManager.finish();
+            return Move.of(forbiddenMove);
+        }
+        if (bookActive && !attr.isOfDraw()) {
+            int move = book.probe(board);
+            int size = board.size();
+            if (move != -1 && GomokuUtil.allowsOpeningMove(opening, board, move % size, move / size)) {
+                timeManager.finish();
+                return Move.ofPoint(move % size, move / size);
+            }
+        }
+
+        StoneType stone = game.stoneTypeBySide(side);
+        table.newSearch();
+        Searcher[] searchers = new Searcher[threads];
+        for (int i = 0; i < searchers.length; i++) {
+            searchers[i] = new Searcher(board.copy(), ruleType, table, orderers[i]);
+            searchers[i].setNetwork(activeNetwork);
+            searchers[i].setOpening(opening);
+        }
+        searchers[0].setTimeManager(timeManager);
+        Future<?>[] helpers = new Future<?>[searchers.length - 1];
+        try {
+            for (int i = 1; i < searchers.length; i++) {
+                Searcher helper = searchers[i];
+                // Odd helpers start one depth ahead of the even ones
+                int startDepth = 1 + i % 2;
+                helpers[i - 1] = executor.submit(() -> helper.think(stone, deadline, startDepth, maxDepth));
+            }
+            searchers[0].think(stone, deadline, maxDepth);
+        } finally {
+            for (Searcher s : searchers) {
+                s.stop();
+            }
+        }
+        // Waits for the helpers, which stop at the next check
+        for (Future<?> f : helpers) {
+            if (f == null)
+                continue;
+            try {
+                f.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Helper search failed", e.getCause());
+            }
+        }
+
+        Searcher searcher = searchers[0];
+        long nodes = searcher.nodes();
+        for (int i = 1; i < searchers.length; i++) {
+            Searcher helper = searchers[i];
+            nodes += helper.nodes();
+            if (helper.completedDepth() > searcher.completedDepth())
+                searcher = helper;
+        }
+        int move = searcher.bestMove();
+
+        long elapsed = Math.max(1, System.nanoTime() - startTime);
+        lastDepth = searcher.completedDepth();
+        lastNodes = nodes;
+        lastNodesPerSecond = nodes * 1_000_000_000 / elapsed;
+
+        timeManager.finish();
+        if (move == -1)
+            return null;
+        int size = board.size();
+        Board.Grid grid = board.getGrid(move % size, move / size);
+        if (attr.isOfDraw() && searcher.rootScore() < 0)
+            return null; // Accepts the draw offer when losing
+        if (ponderExecutor != null && searcher.rootScore() < Searcher.WIN_THRESHOLD)
+            startPondering(move, stone);
+        return Move.of(grid);
+    }
+
+    /**
+     * Starts searching the position after a move on the ponder thread,
+     * with the opponent to move.
+     *
+     * @param move the move.
+     * @param stone the stone type of the move.
+     */
+    private void startPondering(int move, StoneType stone) {
+        int size = board.size();
+        Board b = board.copy();
+        b.move(move % size, move / size, stone);
+        table.newSearch();
+        Searcher searcher = new Searcher(b, ruleType, table, orderers[0]);
+        searcher.setNetwork(activeNetwork);
+        searcher.setOpening(opening);
+        ponderSearcher = searcher;
+        ponderFuture = ponderExecutor.submit(() -> searcher.think(stone.opposite(), Long.MAX_VALUE, maxDepth));
+    }
+
+    /**
+     * Stops pondering and waits for the ponder thread,
+     * which stops at the next check.
+     */
+    private void stopPondering() {
+        if (ponderSearcher == null)
+            return;
+        ponderSearcher.stop();
+        try {
+            ponderFuture.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Pondering failed", e.getCause());
+        }
+        lastPonderNodes = ponderSearcher.nodes();
+        ponderSearcher = null;
+        ponderFuture = null;
+    }
+
+    @Override
+    public int requestChoice(ChoiceSet choiceSet, long timeoutMillis) throws Exception {
+        stopPondering();
+        timeManager.start(timeoutMillis);
+        int choice = evaluator.choose(board, choiceSet, game.stoneTypeBySide(side), timeManager.softDeadline());
+        timeManager.finish();
+        return choice;
+    }
+
+    /**
+     * Gets the depth completed by the last search.
+     *
+     * @return the depth.
+     */
+    public int lastSearchDepth() {
+        return lastDepth;
+    }
+
+    /**
+     * Gets the count of nodes visited by the last search.
+     *
+     * @return the count of nodes.
+     */
+    public long lastSearchNodes() {
+        return lastNodes;
+    }
+
+    /**
+     * Gets the count of nodes visited by the last pondering.
+     *
+     * @return the count of nodes.
+     */
+    public long lastPonderNodes() {
+        return lastPonderNodes;
+    }
+
+    /**
+     * Gets the speed of the last search.
+     *
+     * @return the nodes visited per second.
+     */
+    public long nodesPerSecond() {
+        return lastNodesPerSecond;
+    }
+}
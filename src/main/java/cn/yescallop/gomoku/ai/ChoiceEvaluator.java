@@ -0,0 +1,377 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.ChoiceSet;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Opening;
+import cn.yescallop.gomoku.rule.Rule;
+import cn.yescallop.gomoku.rule.RuleHelper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A ChoiceEvaluator decides the choices and the offered moves
+ * of the openings by bounded searches of the positions they lead to.
+ * <p>
+ * For a choice of strings, "Choose Black" and "Choose White" are
+ * valued by the search of the current position, and any other option,
+ * such as making more moves or offering moves, is valued as even.
+ * For a choice of moves, each move offered is searched.
+ * For a choice of a move count, the candidate moves of the stone type
+ * to move are searched and ranked: when k moves are offered, the
+ * opponent chooses the k-th best of them, and as the color is chosen
+ * afterwards by the opponent, the count closest to even is chosen.
+ * <p>
+ * The positions are searched in parallel when an executor is given,
+ * and deepened together, so that their scores come from the same depth.
+ * Moves offered never equal offered grids or their symmetric grids,
+ * and are within the areas the opening limits them to.
+ *
+ * @author Scallop Ye
+ */
+final class ChoiceEvaluator {
+
+    /**
+     * The maximum depth of the searches.
+     */
+    private static final int MAX_DEPTH = 8;
+
+    /**
+     * The maximum count of candidate moves searched.
+     */
+    private static final int MAX_CANDIDATES = 10;
+
+    private final Rule.Type ruleType;
+    private final Opening opening;
+    private final TranspositionTable table;
+    private final ExecutorService executor;
+
+    /**
+     * Creates an evaluator.
+     *
+     * @param ruleType the type of the rule.
+     * @param opening the opening of the rule, or null if none.
+     * @param table the transposition table.
+     * @param executor the executor to search in parallel, or null.
+     */
+    ChoiceEvaluator(Rule.Type ruleType, Opening opening, TranspositionTable table, ExecutorService executor) {
+        this.ruleType = ruleType;
+        this.opening = opening;
+        this.table = table;
+        this.executor = executor;
+    }
+
+    /**
+     * Makes a choice.
+     *
+     * @param board the board.
+     * @param choiceSet the choice set.
+     * @param own the stone type of the player.
+     * @param deadline the deadline in System.nanoTime().
+     * @return the choice.
+     * @throws InterruptedException if interrupted while searching.
+     */
+    int choose(Board board, ChoiceSet choiceSet, StoneType own, long deadline) throws InterruptedException {
+        table.newSearch();
+        switch (choiceSet.type()) {
+            case STRINGS:
+                return chooseString(board, choiceSet.strings(), deadline);
+            case MOVES:
+                return chooseMove(board, choiceSet.moves(), own, deadline);
+            case MOVE_COUNT:
+                return chooseMoveCount(board, choiceSet.maxMoveCount(), deadline);
+        }
+        return 0;
+    }
+
+    private int chooseString(Board board, String[] strings, long deadline) throws InterruptedException {
+        List<Board> positions = new ArrayList<>(1);
+        positions.add(board.copy());
+        int score = search(positions, deadline)[0];
+        StoneType toMove = board.stoneToMove();
+        int best = 0;
+        long bestScore = Long.MIN_VALUE;
+        for (int i = 0; i < strings.length; i++) {
+            long s = 0;
+            if (strings[i].equals("Choose Black")) {
+                s = toMove == StoneType.BLACK ? score : -score;
+            } else if (strings[i].equals("Choose White")) {
+                s = toMove == StoneType.WHITE ? score : -score;
+            }
+            if (s > bestScore) {
+                best = i;
+                bestScore = s;
+            }
+        }
+        return best;
+    }
+
+    private int chooseMove(Board board, Board.Grid[] moves, StoneType own, long deadline) throws InterruptedException {
+        StoneType stone = board.stoneToMove();
+        List<Board> positions = new ArrayList<>(moves.length);
+        for (Board.Grid move : moves) {
+            Board b = board.copy();
+            b.move(move.x(), move.y(), stone);
+            positions.add(b);
+        }
+        int[] scores = search(positions, deadline);
+        // The scores are for the stone type to move after the move
+        int sign = stone.opposite() == own ? 1 : -1;
+        int best = 0;
+        for (int i = 1; i < moves.length; i++) {
+            if ((long) sign * scores[i] > (long) sign * scores[best])
+                best = i;
+        }
+        return best;
+    }
+
+    private int chooseMoveCount(Board board, int maxMoveCount, long deadline) throws InterruptedException {
+        int[] moves = new int[MAX_CANDIDATES];
+        int[] values = new int[MAX_CANDIDATES];
+        int n = rankCandidates(board, moves, values, deadline);
+        // At least two moves are offered: Soosyrv takes one as playing the
+        // move normally, but Yamaguchi requests that many multiple moves,
+        // which must be at least two
+        int best = 2;
+        for (int k = 3; k <= Math.min(maxMoveCount, n); k++) {
+            if (Math.abs((long) values[k - 1]) < Math.abs((long) values[best - 1]))
+                best = k;
+        }
+        return best;
+    }
+
+    /**
+     * Chooses the best move to offer, which is not offered yet
+     * and not symmetric to a move offered.
+     *
+     * @param board the board.
+     * @param deadline the deadline in System.nanoTime().
+     * @return the move as a grid index y * size + x, or -1 if none.
+     * @throws InterruptedException if interrupted while searching.
+     */
+    int chooseOffer(Board board, long deadline) throws InterruptedException {
+        table.newSearch();
+        int[] moves = new int[MAX_CANDIDATES];
+        int[] values = new int[MAX_CANDIDATES];
+        int n = rankCandidates(board, moves, values, deadline);
+        return n == 0 ? -1 : moves[0];
+    }
+
+    /**
+     * Ranks the candidate moves of the stone type to move by their
+     * searched values, skipping the moves symmetric to offered grids
+     * or to each other, and the ones not allowed by the opening.
+     *
+     * @param board the board.
+     * @param out the array to store the grid indexes of the candidates
+     * in descending order of their values.
+     * @param values the array to store the values.
+     * @param deadline the deadline in System.nanoTime().
+     * @return the count of candidates.
+     */
+    private int rankCandidates(Board board, int[] out, int[] values, long deadline) throws InterruptedException {
+        int size = board.size();
+        StoneType stone = board.stoneToMove();
+        int[] offered = new int[size * size];
+        int offeredCount = offeredGrids(board, offered);
+
+        int[] near = new int[size];
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (board.isEmpty(x, y) && isNear(board, x, y))
+                    near[y] |= 1 << x;
+            }
+        }
+        GomokuUtil.limitToOpening(opening, board, near, new int[size]);
+
+        // Candidates by their static scores
+        int[] moves = new int[out.length];
+        long[] keys = new long[out.length];
+        int n = 0;
+        for (int y = 0; y < size; y++) {
+            for (int bits = near[y]; bits != 0; bits &= bits - 1) {
+                int x = Integer.numberOfTrailingZeros(bits);
+                int cell = y * size + x;
+                if (isSymmetricToAny(cell, offered, offeredCount, size) ||
+                        isSymmetricToAny(cell, moves, n, size))
+                    continue;
+                if (ruleType == Rule.Type.STANDARD_RENJU && stone == StoneType.BLACK &&
+                        RuleHelper.checkForbiddenMove(RuleHelper.countShapes(board, x, y)))
+                    continue;
+                long key = (long) GomokuUtil.evaluate(GomokuUtil.countShapes(board, x, y, stone),
+                        GomokuUtil.overlineWins(ruleType, stone)) +
+                        GomokuUtil.evaluate(GomokuUtil.countShapes(board, x, y, stone.opposite()),
+                                GomokuUtil.overlineWins(ruleType, stone.opposite()));
+                if (n < moves.length) {
+                    moves[n] = cell;
+                    keys[n++] = key;
+                } else {
+                    int min = 0;
+                    for (int i = 1; i < n; i++) {
+                        if (keys[i] < keys[min])
+                            min = i;
+                    }
+                    if (key > keys[min]) {
+                        moves[min] = cell;
+                        keys[min] = key;
+                    }
+                }
+            }
+        }
+
+        List<Board> positions = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            Board b = board.copy();
+            b.move(moves[i] % size, moves[i] / size, stone);
+            positions.add(b);
+        }
+        int[] scores = search(positions, deadline);
+        // Sorts by the values in descending order, negating
+        // the scores, which are for the opponent
+        for (int i = 0; i < n; i++) {
+            int move = moves[i];
+            int value = -scores[i];
+            int j = i - 1;
+            while (j >= 0 && values[j] < value) {
+                out[j + 1] = out[j];
+                values[j + 1] = values[j];
+                j--;
+            }
+            out[j + 1] = move;
+            values[j + 1] = value;
+        }
+        return n;
+    }
+
+    /**
+     * Searches the positions, in parallel if an executor is given.
+     * The positions are deepened together one depth at a time, and
+     * the scores are taken from the deepest iteration all of them
+     * completed, so that they are compared at the same depth.
+     * A position whose result is decided is not deepened further.
+     *
+     * @return the scores for the stone types to move.
+     */
+    private int[] search(List<Board> positions, long deadline) throws InterruptedException {
+        int n = positions.size();
+        Searcher[] searchers = new Searcher[n];
+        for (int i = 0; i < n; i++) {
+            searchers[i] = new Searcher(positions.get(i), ruleType, table);
+            searchers[i].setOpening(opening);
+        }
+        int[] scores = new int[n];
+        boolean[] decided = new boolean[n];
+        for (int depth = 1; depth <= MAX_DEPTH; depth++) {
+            int d = depth;
+            List<Integer> indexes = new ArrayList<>(n);
+            List<Callable<Boolean>> tasks = new ArrayList<>(n);
+            for (int i = 0; i < n; i++) {
+                if (decided[i])
+                    continue;
+                Searcher searcher = searchers[i];
+                indexes.add(i);
+                tasks.add(() -> {
+                    searcher.think(searcher.board().stoneToMove(), deadline, d, d);
+                    return searcher.completedDepth() == d;
+                });
+            }
+            if (tasks.isEmpty() || !runAll(tasks))
+                break;
+            for (int i : indexes) {
+                Searcher searcher = searchers[i];
+                scores[i] = searcher.rootScore();
+                if (searcher.bestMove() == -1 || Math.abs(scores[i]) >= Searcher.WIN_THRESHOLD)
+                    decided[i] = true;
+            }
+        }
+        return scores;
+    }
+
+    /**
+     * Runs the tasks, in parallel if an executor is given.
+     *
+     * @return whether all the tasks returned true.
+     */
+    private boolean runAll(List<Callable<Boolean>> tasks) throws InterruptedException {
+        if (executor == null) {
+            for (Callable<Boolean> task : tasks) {
+                try {
+                    if (!task.call())
+                        return false; // The rest would not complete either
+                } catch (Exception e) {
+                    throw new IllegalStateException("Search failed", e);
+                }
+            }
+            return true;
+        }
+        boolean completed = true;
+        for (Future<Boolean> future : executor.invokeAll(tasks)) {
+            try {
+                completed &= future.get();
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("Search failed", e.getCause());
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Tells whether a grid is within two grids of a stone,
+     * or the center of an empty board.
+     */
+    private static boolean isNear(Board board, int x, int y) {
+        int size = board.size();
+        if (board.currentMoveIndex() == 0)
+            return x == size / 2 && y == size / 2;
+        for (int dy = -2; dy <= 2; dy++) {
+            for (int dx = -2; dx <= 2; dx++) {
+                int nx = x + dx, ny = y + dy;
+                if (nx >= 0 && nx < size && ny >= 0 && ny < size && !board.isEmpty(nx, ny))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Collects the grids offered.
+     *
+     * @param board the board.
+     * @param out the array to store the grid indexes.
+     * @return the count of grids offered.
+     */
+    static int offeredGrids(Board board, int[] out) {
+        int size = board.size();
+        int n = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (board.isEmpty(x, y) && board.getGrid(x, y).isOffered())
+                    out[n++] = y * size + x;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Tells whether a grid equals or is symmetric to one of the grids,
+     * in the sense of {@link Board.Grid#equalsSymmetrically(Board.Grid)}.
+     */
+    static boolean isSymmetricToAny(int cell, int[] grids, int count, int size) {
+        for (int i = 0; i < count; i++) {
+            if (isSymmetric(cell, grids[i], size))
+                return true;
+        }
+        return false;
+    }
+
+    private static boolean isSymmetric(int a, int b, int size) {
+        int ax = a % size, ay = a / size;
+        int bx = b % size, by = b / size;
+        return (ax == bx || ax + bx + 1 == size) && (ay == by || ay + by + 1 == size);
+    }
+}
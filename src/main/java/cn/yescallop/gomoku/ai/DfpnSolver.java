@@ -0,0 +1,503 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+
+/**
+ * A DfpnSolver runs a depth-first proof-number search
+ * to prove that a side wins from a position, such as
+ * the position after an opening.
+ * <p>
+ * The attacker may move in the empty grids within two grids
+ * of a stone, while the defender may move in any empty grid,
+ * so that a proof holds against every defense. A four must be
+ * blocked, and the sequences of fours found by a {@link VcfSolver}
+ * end the search early. Under Renju rules, Black never makes
+ * a forbidden move.
+ * <p>
+ * The proof and disproof numbers are kept in a transposition table
+ * within a memory budget, which is all the state of a search, so that
+ * a search can be saved in a checkpoint file and resumed later,
+ * even in another process. A solver is not thread-safe.
+ *
+ * @author Scallop Ye
+ */
+public final class DfpnSolver {
+
+    /**
+     * The result of solving a position.
+     */
+    public enum Result {
+        /**
+         * The side to move wins.
+         */
+        WIN,
+        /**
+         * The opposite of the side to move wins.
+         */
+        LOSS,
+        /**
+         * Neither side is proven to win.
+         */
+        UNKNOWN
+    }
+
+    /**
+     * The infinite proof or disproof number.
+     */
+    static final int INF = (1 << 28) - 1;
+
+    private static final int NUMBER_MASK = INF;
+    private static final int DN_SHIFT = 28;
+    private static final int AMOUNT_SHIFT = 56;
+    private static final int AMOUNT_MASK = 0x3f;
+    private static final long EXPANDED = 1L << 62;
+
+    /**
+     * The amount of work added to proven or disproven entries,
+     * which are kept over others when replacing.
+     */
+    private static final int TERMINAL_AMOUNT_BONUS = 8;
+
+    /**
+     * The distance in grids from a stone of the moves of the attacker.
+     */
+    private static final int ATTACKER_DISTANCE = 2;
+
+    /**
+     * The node budget of the VCF searches when expanding a position.
+     */
+    private static final int VCF_NODE_BUDGET = 1000;
+
+    /**
+     * The interval in nodes of checking the limits, minus one.
+     */
+    private static final int CHECK_INTERVAL = 1023;
+
+    private static final int CHECKPOINT_MAGIC = 0x4446504e; // "DFPN"
+    private static final int CHECKPOINT_VERSION = 1;
+
+    /**
+     * The key mixed into the hash keys when White attacks.
+     */
+    private static final long WHITE_ATTACKER_KEY = 0x9e3779b97f4a7c15L;
+
+    private static final int PROVEN = 0, DISPROVEN = 1, NONTERMINAL = 2;
+
+    private final int size;
+    private final Rule.Type ruleType;
+    private final ThreatScanner scanner;
+    private final VcfSolver vcf;
+
+    /**
+     * The transposition table, of buckets of two entries.
+     */
+    private final long[] keys;
+    private final long[] entries;
+    private final int bucketMask;
+
+    private Path checkpointPath;
+    private long checkpointIntervalNanos;
+    private long lastCheckpoint;
+    private IOException checkpointError;
+
+    private Board board;
+    private StoneType attacker;
+    private long attackerKey;
+    private long nodeBudget;
+    private long deadline;
+    private long nodes;
+    private long totalNodes;
+    private boolean aborted;
+    private int bestMove = -1;
+
+    /**
+     * Creates a solver.
+     *
+     * @param boardSize the size of the boards to solve.
+     * @param ruleType the type of the rule.
+     * @param hashMegabytes the memory budget in megabytes
+     * of the transposition table.
+     */
+    public DfpnSolver(int boardSize, Rule.Type ruleType, int hashMegabytes) {
+        if (hashMegabytes < 1)
+            throw new IllegalArgumentException("hashMegabytes < 1");
+        this.size = boardSize;
+        this.ruleType = ruleType;
+        scanner = new ThreatScanner(boardSize, ruleType);
+        vcf = new VcfSolver(boardSize, ruleType);
+        long buckets = Long.highestOneBit((long) hashMegabytes * (1 << 20) / (4 * Long.BYTES));
+        buckets = Math.min(buckets, 1 << 29);
+        keys = new long[(int) buckets * 2];
+        entries = new long[(int) buckets * 2];
+        bucketMask = (int) buckets - 1;
+    }
+
+    /**
+     * Saves a checkpoint periodically while solving.
+     * If saving fails, the proof is aborted and
+     * {@link UncheckedIOException} is thrown once the board is restored.
+     *
+     * @param path the path of the checkpoint file, or null to disable.
+     * @param intervalMillis the interval in milliseconds.
+     */
+    public void setCheckpoint(Path path, long intervalMillis) {
+        checkpointPath = path;
+        checkpointIntervalNanos = intervalMillis * 1_000_000;
+    }
+
+    /**
+     * Solves a board for a win of either side, trying
+     * the side to move first.
+     * <p>
+     * A detached board is searched on and restored before returning,
+     * and any other board is copied.
+     *
+     * @param board the board.
+     * @param nodeBudget the maximum count of nodes to visit.
+     * @param deadline the deadline in System.nanoTime().
+     * @return the result.
+     */
+    public Result solve(Board board, long nodeBudget, long deadline) {
+        StoneType stone = board.stoneToMove();
+        if (prove(board, stone, nodeBudget, deadline))
+            return Result.WIN;
+        long remaining = nodeBudget - nodes;
+        if (!aborted && prove(board, stone.opposite(), remaining, deadline))
+            return Result.LOSS;
+        return Result.UNKNOWN;
+    }
+
+    /**
+     * Tries to prove that the attacker wins a board.
+     * <p>
+     * A detached board is searched on and restored before returning,
+     * and any other board is copied.
+     *
+     * @param board the board.
+     * @param attacker the stone type of the attacker.
+     * @param nodeBudget the maximum count of nodes to visit.
+     * @param deadline the deadline in System.nanoTime().
+     * @return whether the attacker is proven to win.
+     */
+    public boolean prove(Board board, StoneType attacker, long nodeBudget, long deadline) {
+        if (board.size() != size)
+            throw new IllegalArgumentException("Board size mismatch");
+        this.board = board.isDetached() ? board : board.copy();
+        this.attacker = attacker;
+        attackerKey = attacker == StoneType.WHITE ? WHITE_ATTACKER_KEY : 0;
+        this.nodeBudget = nodeBudget;
+        this.deadline = deadline;
+        nodes = 0;
+        aborted = false;
+        bestMove = -1;
+        lastCheckpoint = System.nanoTime();
+        checkpointError = null;
+        scanner.truncate(0);
+        try {
+            mid(INF, INF);
+            if (checkpointError != null)
+                throw new UncheckedIOException(checkpointError);
+            long entry = probe(key());
+            boolean proven = entry != 0 && pnOf(entry) == 0;
+            if (proven && this.board.stoneToMove() == attacker)
+                bestMove = findProvenMove();
+            return proven;
+        } finally {
+            scanner.truncate(0);
+            this.board = null;
+        }
+    }
+
+    /**
+     * Gets the winning move of the attacker found by the last proof,
+     * if the attacker was to move.
+     *
+     * @return the move as a grid index y * size + x, or -1 if none.
+     */
+    public int bestMove() {
+        return bestMove;
+    }
+
+    /**
+     * Gets the count of nodes visited by the last proof.
+     *
+     * @return the count of nodes.
+     */
+    public long nodes() {
+        return nodes;
+    }
+
+    /**
+     * Gets the count of nodes visited since creation,
+     * including the ones restored from a checkpoint.
+     *
+     * @return the count of nodes.
+     */
+    public long totalNodes() {
+        return totalNodes;
+    }
+
+    /**
+     * Tells whether the last proof was aborted by the node budget,
+     * the deadline or an interrupt.
+     *
+     * @return whether the last proof was aborted.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Searches a position until its proof or disproof number
+     * reaches a threshold, using the phi and delta numbers of the
+     * side to move: phi is the proof number if the attacker is to
+     * move, or else the disproof number, and delta the other one.
+     *
+     * @param thPhi the threshold of phi.
+     * @param thDelta the threshold of delta.
+     */
+    private void mid(int thPhi, int thDelta) {
+        long startNodes = nodes++;
+        totalNodes++;
+        if ((nodes & CHECK_INTERVAL) == 0)
+            checkLimits();
+        boolean or = board.stoneToMove() == attacker;
+        long key = key();
+        long entry = probe(key);
+        int base = scanner.top();
+        int res = expand(or, (entry & EXPANDED) != 0);
+        if (res != NONTERMINAL) {
+            scanner.truncate(base);
+            boolean proven = res == PROVEN;
+            store(key, proven ? 0 : INF, proven ? INF : 0, TERMINAL_AMOUNT_BONUS, 0);
+            return;
+        }
+        int end = scanner.top();
+        while (true) {
+            int phi = INF, delta = 0;
+            int best = -1, bestPhi = 0, delta2 = INF;
+            boolean infinite = false;
+            for (int i = base; i < end; i++) {
+                int move = scanner.get(i);
+                board.move(move % size, move / size, board.stoneToMove());
+                long childEntry = probe(key());
+                board.unmove();
+                int pn = childEntry == 0 ? 1 : pnOf(childEntry);
+                int dn = childEntry == 0 ? 1 : dnOf(childEntry);
+                int childPhi = or ? dn : pn;
+                int childDelta = or ? pn : dn;
+                if (childDelta < phi) {
+                    delta2 = phi;
+                    phi = childDelta;
+                    best = move;
+                    bestPhi = childPhi;
+                } else if (childDelta < delta2) {
+                    delta2 = childDelta;
+                }
+                if (childPhi >= INF)
+                    infinite = true;
+                delta = Math.min(delta + childPhi, INF - 1);
+            }
+            if (infinite)
+                delta = INF;
+            if (phi >= thPhi || delta >= thDelta || aborted) {
+                scanner.truncate(base);
+                int amount = 64 - Long.numberOfLeadingZeros(nodes - startNodes);
+                if (phi == 0 || delta == 0)
+                    amount += TERMINAL_AMOUNT_BONUS;
+                store(key, or ? phi : delta, or ? delta : phi, amount, EXPANDED);
+                return;
+            }
+            int childThPhi = thDelta + bestPhi - delta;
+            int childThDelta = Math.min(thPhi, delta2 + 1);
+            board.move(best % size, best / size, board.stoneToMove());
+            mid(childThPhi, childThDelta);
+            board.unmove();
+        }
+    }
+
+    /**
+     * Checks whether a position is terminal, or else pushes its moves.
+     *
+     * @param or whether the attacker is to move.
+     * @param expanded whether the position was expanded before,
+     * in which case the VCF searches are skipped.
+     * @return PROVEN, DISPROVEN or NONTERMINAL.
+     */
+    private int expand(boolean or, boolean expanded) {
+        StoneType stone = board.stoneToMove();
+        StoneType opp = stone.opposite();
+        int win = or ? PROVEN : DISPROVEN;
+        int loss = or ? DISPROVEN : PROVEN;
+        if (scanner.scanFivePoints(board, stone) != 0)
+            return win;
+        int n = scanner.scanFivePoints(board, opp);
+        if (n >= 2)
+            return loss;
+        int base = scanner.top();
+        if (n == 1) {
+            int block = scanner.fivePoint(0);
+            if (scanner.isForbidden(board, stone, block % size, block / size))
+                return loss;
+            scanner.push(block);
+            return NONTERMINAL;
+        }
+        if (!expanded && vcf.solve(board, stone, VCF_NODE_BUDGET, deadline) != null)
+            return win;
+        scanner.pushEmptyGrids(board, or ? ATTACKER_DISTANCE : size);
+        int end = base;
+        for (int i = base; i < scanner.top(); i++) {
+            int move = scanner.get(i);
+            if (!scanner.isForbidden(board, stone, move % size, move / size)) {
+                scanner.set(end++, move);
+            }
+        }
+        scanner.truncate(end);
+        // No move means a draw, which is a loss of the attacker
+        return end == base ? DISPROVEN : NONTERMINAL;
+    }
+
+    private int findProvenMove() {
+        if (scanner.scanFivePoints(board, attacker) != 0)
+            return scanner.fivePoint(0);
+        int base = scanner.top();
+        if (expand(true, true) == NONTERMINAL) {
+            for (int i = base; i < scanner.top(); i++) {
+                int move = scanner.get(i);
+                board.move(move % size, move / size, attacker);
+                long entry = probe(key());
+                board.unmove();
+                if (entry != 0 && pnOf(entry) == 0)
+                    return move;
+            }
+        }
+        // Proven by a sequence of fours when expanded
+        int[] line = vcf.solve(board, attacker, VCF_NODE_BUDGET, deadline);
+        return line != null ? line[0] : -1;
+    }
+
+    private void checkLimits() {
+        long now = System.nanoTime();
+        if (nodes >= nodeBudget || now > deadline || Thread.currentThread().isInterrupted())
+            aborted = true;
+        if (checkpointPath != null && now - lastCheckpoint >= checkpointIntervalNanos) {
+            lastCheckpoint = now;
+            try {
+                saveCheckpoint(checkpointPath);
+            } catch (IOException e) {
+                // Unwinds the search with the moves unmade before throwing
+                checkpointError = e;
+                aborted = true;
+            }
+        }
+    }
+
+    private long key() {
+        return board.hashKey() ^ attackerKey;
+    }
+
+    private long probe(long key) {
+        int i = bucketIndex(key);
+        if (keys[i] == key)
+            return entries[i];
+        if (keys[i + 1] == key)
+            return entries[i + 1];
+        return 0;
+    }
+
+    private void store(long key, int pn, int dn, int amount, long flags) {
+        int i = bucketIndex(key);
+        if (keys[i] != key && (keys[i + 1] == key ||
+                amountOf(entries[i + 1]) < amountOf(entries[i])))
+            i++;
+        keys[i] = key;
+        entries[i] = pn | (long) dn << DN_SHIFT |
+                (long) Math.min(amount, AMOUNT_MASK) << AMOUNT_SHIFT | flags;
+    }
+
+    private int bucketIndex(long key) {
+        return ((int) (key ^ key >>> 32) & bucketMask) * 2;
+    }
+
+    private static int pnOf(long entry) {
+        return (int) entry & NUMBER_MASK;
+    }
+
+    private static int dnOf(long entry) {
+        return (int) (entry >>> DN_SHIFT) & NUMBER_MASK;
+    }
+
+    private static int amountOf(long entry) {
+        return (int) (entry >>> AMOUNT_SHIFT) & AMOUNT_MASK;
+    }
+
+    /**
+     * Saves the transposition table and the count of nodes in a
+     * checkpoint file, replacing the file atomically.
+     *
+     * @param path the path of the file.
+     * @throws IOException if an I/O error occurs.
+     */
+    public void saveCheckpoint(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeInt(size);
+            out.writeInt(ruleType.ordinal());
+            out.writeLong(totalNodes);
+            int count = 0;
+            for (long entry : entries) {
+                if (entry != 0)
+                    count++;
+            }
+            out.writeInt(count);
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i] != 0) {
+                    out.writeLong(keys[i]);
+                    out.writeLong(entries[i]);
+                }
+            }
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Loads a checkpoint file saved by a solver of the same
+     * board size and rule type, replacing the transposition table.
+     * Solving the same board then resumes the search.
+     *
+     * @param path the path of the file.
+     * @throws IOException if an I/O error occurs or
+     * the file is not a compatible checkpoint.
+     */
+    public void loadCheckpoint(Path path) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != CHECKPOINT_MAGIC)
+                throw new IOException("Not a checkpoint file");
+            if (in.readInt() != CHECKPOINT_VERSION)
+                throw new IOException("Unsupported checkpoint version");
+            if (in.readInt() != size || in.readInt() != ruleType.ordinal())
+                throw new IOException("Checkpoint of another board size or rule type");
+            long total = in.readLong();
+            Arrays.fill(keys, 0);
+            Arrays.fill(entries, 0);
+            for (int count = in.readInt(); count > 0; count--) {
+                long key = in.readLong();
+                long entry = in.readLong();
+                store(key, pnOf(entry), dnOf(entry), amountOf(entry), entry & EXPANDED);
+            }
+            totalNodes = total;
+        }
+    }
+}
@@ -1,9 +1,12 @@
 package cn.yescallop.gomoku.ai;
 
 import cn.yescallop.gomoku.game.Board;
-import cn.yescallop.gomoku.game.Direction;
+import cn.yescallop.gomoku.game.Game;
 import cn.yescallop.gomoku.game.StoneShape;
 import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Opening;
+import cn.yescallop.gomoku.rule.Rule;
+import cn.yescallop.gomoku.rule.RuleHelper;
 
 import java.util.LinkedList;
 import java.util.List;
@@ -15,10 +18,174 @@ import static cn.yescallop.gomoku.game.StoneShape.*;
  */
 public final class GomokuUtil {
 
+    /**
+     * The radius of the line window around a grid.
+     * A window holds the grid and the 2 * WINDOW_RADIUS grids
+     * around it in a line, which are all the grids
+     * the shapes of the line can depend on.
+     */
+    private static final int WINDOW_RADIUS = 5;
+    private static final int WINDOW_SIZE = 2 * WINDOW_RADIUS + 1;
+    private static final int WINDOW_MASK = (1 << WINDOW_SIZE) - 1;
+
+    /**
+     * The states of the grids in a window.
+     */
+    private static final int EMPTY = 0, OWN = 1, BLOCKED = 2;
+
+    /**
+     * The base-3 values of 10-bit masks, in which
+     * each bit stands for a base-3 digit of 1.
+     */
+    private static final int[] TERNARY = new int[1 << (WINDOW_SIZE - 1)];
+
+    /**
+     * The packed shape counts of the windows, indexed by
+     * the base-3 code of the states of the grids around the center.
+     */
+    private static final long[] SHAPE_TABLE;
+
+    static {
+        for (int m = 1; m < TERNARY.length; m++) {
+            int low = Integer.numberOfTrailingZeros(m);
+            int pow = 1;
+            for (int i = 0; i < low; i++) pow *= 3;
+            TERNARY[m] = TERNARY[m & (m - 1)] + pow;
+        }
+
+        SHAPE_TABLE = new long[TERNARY[TERNARY.length - 1] * 2 + 1];
+        int[] window = new int[WINDOW_SIZE];
+        window[WINDOW_RADIUS] = OWN;
+        for (int code = 0; code < SHAPE_TABLE.length; code++) {
+            int c = code;
+            for (int i = 0; i < WINDOW_SIZE; i++) {
+                if (i == WINDOW_RADIUS) continue;
+                window[i] = c % 3;
+                c /= 3;
+            }
+            SHAPE_TABLE[code] = crlToShapes(crl(window));
+        }
+    }
+
     private GomokuUtil() {
         //no instance
     }
 
+    /**
+     * Tells whether an overline of a stone type wins under a rule,
+     * which is the case in Free-style Gomoku, and for White in Renju.
+     *
+     * @param ruleType the type of the rule.
+     * @param stone the stone type.
+     * @return whether an overline wins.
+     */
+    public static boolean overlineWins(Rule.Type ruleType, StoneType stone) {
+        return ruleType == Rule.Type.FREESTYLE_GOMOKU ||
+                (ruleType == Rule.Type.STANDARD_RENJU && stone == StoneType.WHITE);
+    }
+
+    /**
+     * Finds the last move of a game if it's a forbidden move of Black
+     * left to be reported, as under non-strict Renju rules the game
+     * goes on until White reports it by moving into the grid.
+     * Only White to move can report it, as White may pass instead.
+     *
+     * @param game the game.
+     * @return the grid of the move, or null if none.
+     */
+    public static Board.Grid forbiddenMoveToReport(Game game) {
+        if (game.rule().type() != Rule.Type.STANDARD_RENJU || game.isStrict() ||
+                game.currentStoneType() != StoneType.WHITE)
+            return null;
+        Board.Grid last = game.board().lastMove();
+        if (last == null || last.stone() != StoneType.BLACK)
+            return null;
+        return RuleHelper.checkForbiddenMove(RuleHelper.countShapes(last)) ? last : null;
+    }
+
+    /**
+     * Tells whether the next move of a board is allowed in a grid
+     * by the area limits of an opening.
+     *
+     * @param opening the opening of the rule, or null if none.
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return whether the move is allowed.
+     */
+    public static boolean allowsOpeningMove(Opening opening, Board board, int x, int y) {
+        if (opening == null)
+            return true;
+        int center = (board.size() - 1) / 2;
+        int dist = Math.max(Math.abs(x - center), Math.abs(y - center));
+        return opening.allowsMove(board.currentMoveIndex() + 1, dist);
+    }
+
+    /**
+     * Computes the grids in which the next move of a board is allowed
+     * by the area limits of an opening, as masks of the x coordinates
+     * indexed by y.
+     *
+     * @param opening the opening of the rule, or null if none.
+     * @param board the board.
+     * @param masks the array to store the masks.
+     * @return whether the move is limited, or else the masks are unchanged.
+     */
+    public static boolean openingMasks(Opening opening, Board board, int[] masks) {
+        if (opening == null)
+            return false;
+        int size = board.size();
+        int center = (size - 1) / 2;
+        int maxDist = size - 1 - center;
+        int index = board.currentMoveIndex() + 1;
+        // The distances allowed, as the limits only depend on them
+        int dists = 0;
+        for (int d = 0; d <= maxDist; d++) {
+            if (opening.allowsMove(index, d))
+                dists |= 1 << d;
+        }
+        if (dists == (1 << maxDist + 1) - 1)
+            return false;
+        for (int y = 0; y < size; y++) {
+            int dy = Math.abs(y - center);
+            int mask = 0;
+            for (int x = 0; x < size; x++) {
+                if ((dists >>> Math.max(Math.abs(x - center), dy) & 1) != 0)
+                    mask |= 1 << x;
+            }
+            masks[y] = mask;
+        }
+        return true;
+    }
+
+    /**
+     * Limits the candidate grids of the next move of a board to the ones
+     * allowed by an opening. If none of them is allowed, all the empty
+     * grids allowed become the candidates.
+     *
+     * @param opening the opening of the rule, or null if none.
+     * @param board the board.
+     * @param candidates the masks of the x coordinates of the
+     * candidates indexed by y, updated in place.
+     * @param masks a temporary array of the same length.
+     */
+    public static void limitToOpening(Opening opening, Board board, int[] candidates, int[] masks) {
+        if (!openingMasks(opening, board, masks))
+            return;
+        int size = board.size();
+        boolean any = false;
+        for (int y = 0; y < size; y++) {
+            candidates[y] &= masks[y];
+            any |= candidates[y] != 0;
+        }
+        if (any)
+            return;
+        for (int y = 0; y < size; y++) {
+            int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+            candidates[y] = masks[y] & ~row;
+        }
+    }
+
     public static int evaluate(List<StoneShape> list, boolean freestyle) {
         int res = 0;
         int fours = 0;
@@ -52,6 +219,35 @@ public final class GomokuUtil {
         return res;
     }
 
+    /**
+     * Evaluates packed shape counts, giving the same
+     * result as evaluating a list of the shapes.
+     *
+     * @param counts the packed shape counts.
+     * @param freestyle whether the rule is free-style.
+     * @return the score.
+     */
+    public static int evaluate(long counts, boolean freestyle) {
+        int openFours = OPEN_FOUR.countIn(counts);
+        int fours = SEMI_OPEN_FOUR.countIn(counts);
+        if (freestyle)
+            fours += BROKEN_OVERLINE.countIn(counts);
+        int openThrees = OPEN_THREE.countIn(counts);
+        int res = openFours * 1000000000
+                + fours * evaluate(SEMI_OPEN_FOUR)
+                + openThrees * evaluate(OPEN_THREE)
+                + SEMI_OPEN_THREE.countIn(counts) * evaluate(SEMI_OPEN_THREE)
+                + OPEN_TWO.countIn(counts) * evaluate(OPEN_TWO)
+                + SEMI_OPEN_TWO.countIn(counts) * evaluate(SEMI_OPEN_TWO);
+        if (openFours != 0)
+            return res;
+        if (fours >= 2)
+            return 1000000000;
+        if (fours + openThrees >= 2)
+            res *= 10;
+        return res;
+    }
+
     public static int evaluate(StoneShape s) {
         switch (s) {
             case SEMI_OPEN_FOUR:
@@ -71,46 +267,83 @@ public final class GomokuUtil {
     public static List<StoneShape> searchShapes(Board.Grid grid, StoneType stone) {
         assert grid.isEmpty() || grid.stone() == stone;
 
+        long counts = countShapes(grid.board(), grid.x(), grid.y(), stone);
         List<StoneShape> res = new LinkedList<>();
-        for (int d = 0; d < 4; d++) {
-            ssl(grid, stone, d, res);
+        for (StoneShape s : StoneShape.values()) {
+            for (int i = s.countIn(counts); i > 0; i--) {
+                res.add(s);
+            }
         }
         return res;
     }
 
     /**
-     * Searches shapes in the line.
+     * Counts the shapes containing a grid, as if a stone
+     * of the type were in the grid.
      *
-     * @param grid the grid.
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
      * @param stone the stone type.
-     * @param d the direction index.
-     * @param res the list of shapes.
+     * @return the packed shape counts.
      */
-    private static void ssl(Board.Grid grid, StoneType stone, int d, List<StoneShape> res) {
-        int[] crl = crl(grid, stone, d);
-        crlToShapes(crl, res);
+    public static long countShapes(Board board, int x, int y, StoneType stone) {
+        long counts = 0;
+        for (int d = 0; d < 4; d++) {
+            counts += SHAPE_TABLE[windowCode(board, x, y, stone, d)];
+        }
+        return counts;
     }
 
-    private static void crlToShapes(int[] crl, List<StoneShape> res) {
+    /**
+     * Encodes the line window around a grid.
+     *
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param stone the stone type.
+     * @param d the direction index, from 0 to 3.
+     * @return the base-3 code of the window.
+     */
+    private static int windowCode(Board board, int x, int y, StoneType stone, int d) {
+        int pos = board.linePosition(d, x, y);
+        // Shifts the line so that the grid is at the center of the window
+        int own = (int) (((long) board.lineBits(stone, d, x, y) << WINDOW_RADIUS) >>> pos) & WINDOW_MASK;
+        int opp = (int) (((long) board.lineBits(stone.opposite(), d, x, y) << WINDOW_RADIUS) >>> pos) & WINDOW_MASK;
+        int inside = (int) ((((1L << board.lineLength(d, x, y)) - 1) << WINDOW_RADIUS) >>> pos) & WINDOW_MASK;
+        int blocked = (opp | ~inside) & WINDOW_MASK;
+        return TERNARY[dropCenter(own)] + 2 * TERNARY[dropCenter(blocked)];
+    }
+
+    private static int dropCenter(int window) {
+        return (window & ((1 << WINDOW_RADIUS) - 1)) | (window >>> (WINDOW_RADIUS + 1) << WINDOW_RADIUS);
+    }
+
+    /**
+     * Converts the result of {@link #crl(int[])} to shapes.
+     *
+     * @param crl the result.
+     * @return the packed shape counts.
+     */
+    private static long crlToShapes(int[] crl) {
+        long res = 0;
         int central = crl[0];
         if (central == 5) {
-            res.add(FIVE);
-            return;
+            return FIVE.addTo(res);
         }
         if (central > 5) {
-            res.add(OVERLINE);
-            return;
+            return OVERLINE.addTo(res);
         }
 
         if (central == 1) {
             // -(X)-X-X-
             // fwd
             if (crl[1] == (1 << 16 | 1) && crl[2] == (1 << 16 | 1)) {
-                res.add(SEMI_OPEN_THREE);
+                res = SEMI_OPEN_THREE.addTo(res);
             }
             // bwd
             if (crl[3] == (1 << 16 | 1) && crl[4] == (1 << 16 | 1)) {
-                res.add(SEMI_OPEN_THREE);
+                res = SEMI_OPEN_THREE.addTo(res);
             }
             // -X-(X)-X-
             boolean flag = true;
@@ -121,7 +354,7 @@ public final class GomokuUtil {
                 }
             }
             if (flag)
-                res.add(SEMI_OPEN_THREE);
+                res = SEMI_OPEN_THREE.addTo(res);
         }
 
         int[] fwd = new int[]{crl[1] & 0xffff, crl[1] >>> 16};
@@ -143,7 +376,7 @@ public final class GomokuUtil {
                 bwdEmpty = tmp;
             }
             if (central + fwd[0] == 5) {
-                res.add(BROKEN_OVERLINE);
+                res = BROKEN_OVERLINE.addTo(res);
                 continue;
             }
             int total = central;
@@ -152,15 +385,16 @@ public final class GomokuUtil {
                 total += fwd[0];
                 open = checkOpen(total, fwdEmpty[0], fwdEmpty[1], bwdEmpty[0], fwd[1], bwd[0]);
                 if (open != -1)
-                    res.add(StoneShape.ofLength(total, open == 1));
+                    res = StoneShape.ofLength(total, open == 1).addTo(res);
             } else {
-                if (flag) return; // two same unbroken rows
+                if (flag) return res; // two same unbroken rows
                 open = checkOpen(total, 0, fwdEmpty[0], bwdEmpty[0], fwd[0], bwd[0]);
                 if (open != -1)
-                    res.add(StoneShape.ofLength(total, open == 1));
+                    res = StoneShape.ofLength(total, open == 1).addTo(res);
                 flag = true;
             }
         }
+        return res;
     }
 
     private static int checkOpen(int total, int emptyBetween,
@@ -192,31 +426,32 @@ public final class GomokuUtil {
         }
     }
 
-    private static int[] crl(Board.Grid grid, StoneType stone, int d) {
+    /**
+     * Calculates the central row and the rows around it in a window,
+     * of which the center is regarded as a stone of the own type.
+     *
+     * @param window the states of the grids in the window.
+     * @return the central row length, followed by the packed
+     * row and empty lengths forward and backward.
+     */
+    private static int[] crl(int[] window) {
         int central = 1;
-        Board.Grid gFwd = grid;
-        Board.Grid gBwd = grid;
-        int dr = Direction.reverse(d);
-
-        while (true) {
-            gFwd = gFwd.adjacent(d);
-            if (gFwd != null && gFwd.stone() == stone)
-                central++;
-            else break;
+        int fwd = WINDOW_RADIUS;
+        int bwd = WINDOW_RADIUS;
+
+        while (state(window, ++fwd) == OWN) {
+            central++;
         }
-        while (true) {
-            gBwd = gBwd.adjacent(dr);
-            if (gBwd != null && gBwd.stone() == stone)
-                central++;
-            else break;
+        while (state(window, --bwd) == OWN) {
+            central++;
         }
 
-        int[] fwd = crd(gFwd, stone, d, central);
-        int[] bwd = crd(gBwd, stone, dr, central);
-        return new int[]{central, fwd[0], fwd[1], bwd[0], bwd[1]};
+        int[] fwdRes = crd(window, fwd, 1, central);
+        int[] bwdRes = crd(window, bwd, -1, central);
+        return new int[]{central, fwdRes[0], fwdRes[1], bwdRes[0], bwdRes[1]};
     }
 
-    private static int[] crd(Board.Grid grid, StoneType stone, int d, int central) {
+    private static int[] crd(int[] window, int i, int step, int central) {
         if (central > 4)
             return new int[2];
 
@@ -224,28 +459,26 @@ public final class GomokuUtil {
         int[] res = new int[4];
         int c = 0;
         boolean empty = true;
-        for (int i = 0; i < count; i++) {
-            if (grid != null) {
-                StoneType curStone = grid.stone();
-                if (curStone == stone) {
-                    if (empty) {
-                        c++;
-                        empty = false;
-                    }
-                    res[c]++;
-                    grid = grid.adjacent(d);
-                    continue;
-                } else if (curStone == null) {
-                    if (!empty) {
-                        c++;
-                        if (c == 4)
-                            break;
-                        empty = true;
-                    }
-                    res[c]++;
-                    grid = grid.adjacent(d);
-                    continue;
+        for (int k = 0; k < count; k++) {
+            int state = state(window, i);
+            if (state == OWN) {
+                if (empty) {
+                    c++;
+                    empty = false;
                 }
+                res[c]++;
+                i += step;
+                continue;
+            } else if (state == EMPTY) {
+                if (!empty) {
+                    c++;
+                    if (c == 4)
+                        break;
+                    empty = true;
+                }
+                res[c]++;
+                i += step;
+                continue;
             }
             // border || opponent's
             break;
@@ -254,6 +487,10 @@ public final class GomokuUtil {
         return new int[]{res[3] << 16 | res[1], res[2] << 16 | res[0]};
     }
 
+    private static int state(int[] window, int i) {
+        return i >= 0 && i < WINDOW_SIZE ? window[i] : BLOCKED;
+    }
+
     private static int maxEmpty(int central) {
         switch (central) {
             case 1:
@@ -0,0 +1,572 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.*;
+import cn.yescallop.gomoku.player.PlayerAdapter;
+import cn.yescallop.gomoku.rule.Opening;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import static cn.yescallop.gomoku.game.StoneShape.FIVE;
+import static cn.yescallop.gomoku.game.StoneShape.OVERLINE;
+
+/**
+ * A gomoku AI running a Monte Carlo tree search
+ * on all the available processors.
+ * <p>
+ * The threads share one tree, selecting by UCT with a virtual loss
+ * on the nodes being searched, so that they spread over the tree.
+ * Playouts pick among the best moves by the shape evaluation of
+ * {@link GomokuUtil}, always making or blocking a five.
+ * The tree is kept across moves, advancing the root on the moves
+ * of both sides. The moves limited to some areas by the opening of
+ * the rule are generated in those areas only.
+ *
+ * @author Scallop Ye
+ */
+public class MctsAI extends PlayerAdapter {
+
+    private static final long DEFAULT_MAX_THINK_MILLIS = 5000;
+
+    /**
+     * The exploration constant of UCT.
+     */
+    private static final double EXPLORATION = 0.7;
+
+    /**
+     * The visits added to a node being searched by a thread.
+     */
+    private static final int VIRTUAL_LOSS = 3;
+
+    /**
+     * The visits of a leaf before it is expanded.
+     */
+    private static final int EXPAND_VISITS = 2;
+
+    /**
+     * The maximum count of children of a node.
+     */
+    private static final int MAX_CHILDREN = 20;
+
+    /**
+     * The maximum count of moves of a playout, after which it is a draw.
+     */
+    private static final int MAX_PLAYOUT_MOVES = 60;
+
+    /**
+     * The count of the best moves a playout picks among.
+     */
+    private static final int PLAYOUT_CHOICES = 3;
+
+    /**
+     * The memory budget in megabytes of the transposition table
+     * of the searches deciding the choices.
+     */
+    private static final int CHOICE_HASH_MEGABYTES = 8;
+
+    private final int threads;
+    private final TimeManager timeManager;
+    private final TranspositionTable choiceTable;
+
+    private OpeningBook book;
+    private boolean bookActive;
+
+    private Game game;
+    private Board board;
+    private boolean freestyle;
+    private Opening opening;
+    private ExecutorService executor;
+    private ChoiceEvaluator evaluator;
+
+    private Node root;
+
+    private long lastPlayouts;
+    private long lastPlayoutsPerSecond;
+
+    public MctsAI() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_MAX_THINK_MILLIS);
+    }
+
+    /**
+     * Creates an MCTS AI.
+     *
+     * @param threads the count of searching threads.
+     * @param maxThinkMillis the maximum thinking time of a move.
+     */
+    public MctsAI(int threads, long maxThinkMillis) {
+        super("MCTS Gomoku AI");
+        if (threads < 1)
+            throw new IllegalArgumentException("threads < 1");
+        this.threads = threads;
+        timeManager = new TimeManager(maxThinkMillis);
+        choiceTable = new TranspositionTable(CHOICE_HASH_MEGABYTES);
+    }
+
+    /**
+     * Sets the opening book consulted before searching,
+     * taking effect from the next game.
+     *
+     * @param book the book, or null for none.
+     */
+    public void setOpeningBook(OpeningBook book) {
+        this.book = book;
+    }
+
+    @Override
+    public void gameStarted(Game game) {
+        Rule.Type type = game.rule().type();
+        if (type == Rule.Type.STANDARD_RENJU) {
+            throw new IllegalArgumentException("Not Standard or Free-style Gomoku");
+        }
+        this.game = game;
+        board = game.board();
+        freestyle = type == Rule.Type.FREESTYLE_GOMOKU;
+        // A separate instance, only asked for the area limits
+        opening = game.rule().newOpening();
+        timeManager.reset(game, side);
+        bookActive = book != null && book.boardSize() == board.size() && book.ruleType() == type;
+        root = null;
+        AtomicInteger count = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "MCTS-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        choiceTable.clear();
+        evaluator = new ChoiceEvaluator(type, opening, choiceTable, executor);
+    }
+
+    @Override
+    public void gameEnded(Result result) {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        root = null;
+    }
+
+    @Override
+    public void opponentMoveMade(Move move) {
+        root = advance(root, move.point());
+    }
+
+    @Override
+    public Move requestMove(Move.Attribute attr, long timeoutMillis) throws Exception {
+        if (game.currentMoveIndex() == 0) {
+            int c = board.size() / 2;
+            return Move.ofPoint(c, c);
+        }
+        long startTime = System.nanoTime();
+        timeManager.start(timeoutMillis);
+        long deadline = timeManager.softDeadline();
+        if (attr.isMultiple()) {
+            int move = evaluator.chooseOffer(board, deadline);
+            timeManager.finish();
+            int size = board.size();
+            return move == -1 ? null : Move.ofPoint(move % size, move / size);
+        }
+        if (bookActive && !attr.isOfDraw()) {
+            int move = book.probe(board);
+            int size = board.size();
+            if (move != -1 && GomokuUtil.allowsOpeningMove(opening, board, move % size, move / size)) {
+                timeManager.finish();
+                return Move.ofPoint(move % size, move / size);
+            }
+        }
+
+        StoneType stone = game.stoneTypeBySide(side);
+        if (root == null || root.key != board.hashKey())
+            root = new Node(-1, stone.opposite(), board.hashKey(), false);
+
+        LongAdder playouts = new LongAdder();
+        List<Future<?>> futures = new ArrayList<>(threads);
+        for (int i = 0; i < threads; i++) {
+            Worker worker = new Worker(board.copy(), root, deadline, playouts);
+            futures.add(executor.submit(worker));
+        }
+        try {
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } finally {
+            for (Future<?> f : futures) {
+                f.cancel(true);
+            }
+        }
+
+        long elapsed = Math.max(1, System.nanoTime() - startTime);
+        lastPlayouts = playouts.sum();
+        lastPlayoutsPerSecond = lastPlayouts * 1_000_000_000 / elapsed;
+        timeManager.finish();
+
+        Node best = root.mostVisitedChild();
+        if (best == null)
+            return null;
+        if (attr.isOfDraw() && best.winRate() < 0.5)
+            return null; // Accepts the draw offer when losing
+        root = best;
+        int size = board.size();
+        return Move.ofPoint(best.move % size, best.move / size);
+    }
+
+    @Override
+    public int requestChoice(ChoiceSet choiceSet, long timeoutMillis) throws Exception {
+        timeManager.start(timeoutMillis);
+        int choice = evaluator.choose(board, choiceSet, game.stoneTypeBySide(side), timeManager.softDeadline());
+        timeManager.finish();
+        return choice;
+    }
+
+    /**
+     * Gets the count of playouts of the last search.
+     *
+     * @return the count of playouts.
+     */
+    public long lastPlayouts() {
+        return lastPlayouts;
+    }
+
+    /**
+     * Gets the speed of the last search.
+     *
+     * @return the playouts run per second.
+     */
+    public long playoutsPerSecond() {
+        return lastPlayoutsPerSecond;
+    }
+
+    private Node advance(Node node, Board.Point p) {
+        if (node == null || p == null)
+            return null;
+        Node[] children = node.children;
+        if (children == null)
+            return null;
+        int move = p.y() * board.size() + p.x();
+        for (Node child : children) {
+            if (child.move == move)
+                return child;
+        }
+        return null;
+    }
+
+    private boolean isWin(long shapes) {
+        return FIVE.countIn(shapes) != 0 || (freestyle && OVERLINE.countIn(shapes) != 0);
+    }
+
+    /**
+     * A node of the search tree.
+     */
+    private static final class Node {
+
+        /**
+         * The move leading to this node, as a grid index y * size + x.
+         */
+        final int move;
+
+        /**
+         * The stone type of the move.
+         */
+        final StoneType stone;
+
+        /**
+         * The hash key of the board of this node.
+         */
+        final long key;
+
+        /**
+         * Whether the move makes a five.
+         */
+        final boolean terminal;
+
+        volatile Node[] children;
+
+        /**
+         * The visits, including the virtual losses.
+         */
+        private volatile int visits;
+
+        /**
+         * The visits completed, excluding the virtual losses.
+         */
+        private volatile int realVisits;
+
+        /**
+         * The score of the stone type of the move,
+         * which is 2 for a win and 1 for a draw.
+         */
+        private volatile int score;
+
+        Node(int move, StoneType stone, long key, boolean terminal) {
+            this.move = move;
+            this.stone = stone;
+            this.key = key;
+            this.terminal = terminal;
+        }
+
+        synchronized void addVirtualLoss() {
+            visits += VIRTUAL_LOSS;
+        }
+
+        synchronized void update(int result, boolean virtualLoss) {
+            visits += virtualLoss ? 1 - VIRTUAL_LOSS : 1;
+            realVisits++;
+            score += result;
+        }
+
+        /**
+         * Tells whether the stone type to move wins at once.
+         */
+        boolean isWon() {
+            Node[] children = this.children;
+            return children != null && children.length == 1 && children[0].terminal;
+        }
+
+        double winRate() {
+            int n = visits;
+            return n == 0 ? 0 : score / (2.0 * n);
+        }
+
+        Node selectChild() {
+            Node[] children = this.children;
+            double logN = Math.log(Math.max(1, visits));
+            Node best = null;
+            double bestValue = Double.NEGATIVE_INFINITY;
+            for (Node child : children) {
+                if (child.terminal)
+                    return child;
+                int n = child.visits;
+                if (n == 0)
+                    return child; // Children are ordered by evaluation
+                double value = child.score / (2.0 * n) + EXPLORATION * Math.sqrt(logN / n);
+                if (value > bestValue) {
+                    best = child;
+                    bestValue = value;
+                }
+            }
+            return best;
+        }
+
+        Node mostVisitedChild() {
+            Node[] children = this.children;
+            if (children == null)
+                return null;
+            Node best = null;
+            for (Node child : children) {
+                if (child.terminal)
+                    return child;
+                if (best == null || child.visits > best.visits)
+                    best = child;
+            }
+            return best;
+        }
+    }
+
+    /**
+     * A searching thread, working on its own copy of the board.
+     */
+    private final class Worker implements Runnable {
+
+        private final Board board;
+        private final int size;
+        private final Node root;
+        private final long deadline;
+        private final LongAdder playouts;
+
+        private final Node[] path;
+        private final int[] candidates;
+        private final long[] scores;
+        private final int[] rowMasks;
+        private final int[] nearMasks;
+
+        Worker(Board board, Node root, long deadline, LongAdder playouts) {
+            this.board = board;
+            this.size = board.size();
+            this.root = root;
+            this.deadline = deadline;
+            this.playouts = playouts;
+            path = new Node[size * size];
+            candidates = new int[size * size];
+            scores = new long[size * size];
+            rowMasks = new int[size];
+            nearMasks = new int[size];
+        }
+
+        @Override
+        public void run() {
+            while (System.nanoTime() < deadline && !Thread.currentThread().isInterrupted() &&
+                    !root.isWon()) {
+                iterate();
+                playouts.increment();
+            }
+        }
+
+        private void iterate() {
+            Node node = root;
+            int depth = 0;
+            while (node.children != null && !node.terminal && depth < path.length) {
+                Node[] children = node.children;
+                if (children.length == 0)
+                    break;
+                node = node.selectChild();
+                node.addVirtualLoss();
+                board.move(node.move % size, node.move / size, node.stone);
+                path[depth++] = node;
+            }
+
+            StoneType winner;
+            if (node.terminal) {
+                winner = node.stone;
+            } else {
+                // Virtual losses are not counted, or every leaf would be expanded at once
+                if (node.children == null && node.realVisits >= EXPAND_VISITS) {
+                    expand(node);
+                }
+                winner = playout();
+            }
+
+            for (int i = depth - 1; i >= 0; i--) {
+                Node n = path[i];
+                n.update(resultOf(winner, n.stone), true);
+                board.unmove();
+            }
+            root.update(resultOf(winner, root.stone), false);
+        }
+
+        private int resultOf(StoneType winner, StoneType stone) {
+            return winner == null ? 1 : winner == stone ? 2 : 0;
+        }
+
+        private void expand(Node node) {
+            synchronized (node) {
+                if (node.children != null)
+                    return;
+                StoneType stone = board.stoneToMove();
+                int count = generate(stone, MAX_CHILDREN);
+                boolean win = count < 0;
+                if (win)
+                    count = 1; // Only the winning move
+                Node[] children = new Node[count];
+                for (int i = 0; i < count; i++) {
+                    int move = candidates[i];
+                    board.move(move % size, move / size, stone);
+                    children[i] = new Node(move, stone, board.hashKey(), win);
+                    board.unmove();
+                }
+                node.children = children;
+            }
+        }
+
+        /**
+         * Plays the game out from the current board, restoring it after.
+         *
+         * @return the winner, or null for a draw.
+         */
+        private StoneType playout() {
+            ThreadLocalRandom random = ThreadLocalRandom.current();
+            StoneType stone = board.stoneToMove();
+            StoneType winner = null;
+            int moves = 0;
+            while (moves < MAX_PLAYOUT_MOVES) {
+                int count = generate(stone, PLAYOUT_CHOICES);
+                if (count < 0) {
+                    winner = stone;
+                    break;
+                }
+                if (count == 0)
+                    break; // The board is full
+                int move = candidates[random.nextInt(count)];
+                board.move(move % size, move / size, stone);
+                moves++;
+                stone = stone.opposite();
+            }
+            for (int i = 0; i < moves; i++) {
+                board.unmove();
+            }
+            return winner;
+        }
+
+        /**
+         * Generates the moves of a stone type ordered by evaluation,
+         * which are the empty grids within two grids of a stone.
+         * If the opponent can make a five, only such grids are generated.
+         *
+         * @param stone the stone type.
+         * @param max the maximum count of moves.
+         * @return the count of the moves, or -1 if a five
+         * can be made in the first candidate.
+         */
+        private int generate(StoneType stone, int max) {
+            StoneType opp = stone.opposite();
+            int full = (1 << size) - 1;
+            boolean any = false;
+            for (int y = 0; y < size; y++) {
+                int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+                any |= row != 0;
+                rowMasks[y] = (row | row << 1 | row << 2 | row >>> 1 | row >>> 2) & full;
+            }
+            if (!any) {
+                candidates[0] = size / 2 * size + size / 2;
+                return 1;
+            }
+            for (int y = 0; y < size; y++) {
+                int near = 0;
+                for (int k = Math.max(0, y - 2); k <= Math.min(size - 1, y + 2); k++) {
+                    near |= rowMasks[k];
+                }
+                int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+                nearMasks[y] = near & ~row;
+            }
+            GomokuUtil.limitToOpening(opening, board, nearMasks, rowMasks);
+            int count = 0;
+            int blocks = 0;
+            for (int y = 0; y < size; y++) {
+                for (int bits = nearMasks[y]; bits != 0; bits &= bits - 1) {
+                    int x = Integer.numberOfTrailingZeros(bits);
+                    int cell = y * size + x;
+                    long ownShapes = GomokuUtil.countShapes(board, x, y, stone);
+                    if (isWin(ownShapes)) {
+                        candidates[0] = cell;
+                        return -1;
+                    }
+                    long oppShapes = GomokuUtil.countShapes(board, x, y, opp);
+                    long score = (long) GomokuUtil.evaluate(ownShapes, freestyle) +
+                            GomokuUtil.evaluate(oppShapes, freestyle);
+                    if (isWin(oppShapes)) {
+                        // Keeps the blocking moves at the front
+                        candidates[count] = candidates[blocks];
+                        scores[count] = scores[blocks];
+                        candidates[blocks] = cell;
+                        scores[blocks] = Long.MAX_VALUE;
+                        blocks++;
+                    } else {
+                        candidates[count] = cell;
+                        scores[count] = score;
+                    }
+                    count++;
+                }
+            }
+            if (blocks != 0)
+                return blocks;
+            // Selects the best moves to the front
+            int n = Math.min(max, count);
+            for (int i = 0; i < n; i++) {
+                int best = i;
+                for (int j = i + 1; j < count; j++) {
+                    if (scores[j] > scores[best])
+                        best = j;
+                }
+                int move = candidates[best];
+                long score = scores[best];
+                candidates[best] = candidates[i];
+                scores[best] = scores[i];
+                candidates[i] = move;
+                scores[i] = score;
+            }
+            return n;
+        }
+    }
+}
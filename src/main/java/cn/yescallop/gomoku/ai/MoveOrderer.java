@@ -0,0 +1,233 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.util.Arrays;
+
+import static cn.yescallop.gomoku.game.StoneShape.*;
+
+/**
+ * A MoveOrderer orders the candidate moves of a search.
+ * <p>
+ * The move from the transposition table is tried first, then the
+ * threats ranked by the shapes they make or block, then the killer
+ * moves of the ply, and then the other moves by their static scores
+ * and a history of the cutoffs they caused in each grid.
+ * Under Renju rules, a four of White whose five point is forbidden
+ * for Black is ranked as a win, as Black can't block it.
+ * <p>
+ * Moves are grid indexes y * size + x. The killer moves are kept
+ * for one search and the history is aged between searches.
+ * An orderer is not thread-safe, so every search thread has its own.
+ *
+ * @author Scallop Ye
+ */
+final class MoveOrderer {
+
+    /**
+     * The threat ranks of the moves.
+     */
+    static final int RANK_QUIET = 0;
+    static final int RANK_THREE = 1;
+    static final int RANK_FOUR = 2;
+    static final int RANK_BLOCK_WIN = 3;
+    static final int RANK_WIN = 4;
+
+    private static final int RANK_SHIFT = 56;
+    private static final long KILLER_BIT = 1L << 55;
+
+    /**
+     * The bound of the history scores, which is about the static score
+     * of a semi-open two so that history only reorders similar moves.
+     */
+    private static final int HISTORY_MAX = 1 << 10;
+
+    private final Rule.Type ruleType;
+
+    /**
+     * The two killer moves of each ply, the newer first.
+     */
+    private final int[][] killers;
+
+    /**
+     * The history scores indexed by stone type and grid.
+     */
+    private final int[][] history;
+
+    /**
+     * Creates an orderer.
+     *
+     * @param boardSize the size of the boards.
+     * @param ruleType the type of the rule.
+     * @param maxPly the maximum ply of the search.
+     */
+    MoveOrderer(int boardSize, Rule.Type ruleType, int maxPly) {
+        this.ruleType = ruleType;
+        killers = new int[maxPly + 1][2];
+        history = new int[2][boardSize * boardSize];
+        clear();
+    }
+
+    /**
+     * Clears the killer moves and the history.
+     */
+    void clear() {
+        clearKillers();
+        for (int[] h : history) {
+            Arrays.fill(h, 0);
+        }
+    }
+
+    /**
+     * Prepares for a new search, clearing the killer moves
+     * and halving the history.
+     */
+    void age() {
+        clearKillers();
+        for (int[] h : history) {
+            for (int i = 0; i < h.length; i++) {
+                h[i] /= 2;
+            }
+        }
+    }
+
+    private void clearKillers() {
+        for (int[] k : killers) {
+            k[0] = -1;
+            k[1] = -1;
+        }
+    }
+
+    /**
+     * Ranks a move by the threat it makes or blocks.
+     *
+     * @param stone the stone type to move.
+     * @param ownShapes the packed counts of the shapes made by the move.
+     * @param oppShapes the packed counts of the shapes the opponent
+     * would make in the grid.
+     * @param forcesForbidden whether the move makes a four
+     * whose five point is forbidden for Black.
+     * @return the rank.
+     */
+    int rank(StoneType stone, long ownShapes, long oppShapes, boolean forcesForbidden) {
+        int ownFours = SEMI_OPEN_FOUR.countIn(ownShapes);
+        int oppFours = SEMI_OPEN_FOUR.countIn(oppShapes);
+        if (GomokuUtil.overlineWins(ruleType, stone))
+            ownFours += BROKEN_OVERLINE.countIn(ownShapes);
+        if (GomokuUtil.overlineWins(ruleType, stone.opposite()))
+            oppFours += BROKEN_OVERLINE.countIn(oppShapes);
+        int ownThrees = OPEN_THREE.countIn(ownShapes);
+        if (forcesForbidden || OPEN_FOUR.countIn(ownShapes) != 0 ||
+                ownFours >= 2 || (ownFours != 0 && ownThrees != 0))
+            return RANK_WIN;
+        int oppThrees = OPEN_THREE.countIn(oppShapes);
+        if (OPEN_FOUR.countIn(oppShapes) != 0 || oppFours >= 2 || (oppFours != 0 && oppThrees != 0))
+            return RANK_BLOCK_WIN;
+        if (ownFours != 0)
+            return RANK_FOUR;
+        if (ownThrees != 0 || oppThrees != 0)
+            return RANK_THREE;
+        return RANK_QUIET;
+    }
+
+    /**
+     * Computes the ordering key of a move, the greater the earlier.
+     *
+     * @param stone the stone type to move.
+     * @param ply the ply.
+     * @param move the move.
+     * @param ownShapes the packed counts of the shapes made by the move.
+     * @param oppShapes the packed counts of the shapes the opponent
+     * would make in the grid.
+     * @param staticScore the static score of the move.
+     * @param forcesForbidden whether the move makes a four
+     * whose five point is forbidden for Black.
+     * @return the key.
+     */
+    long key(StoneType stone, int ply, int move, long ownShapes, long oppShapes,
+             long staticScore, boolean forcesForbidden) {
+        int rank = rank(stone, ownShapes, oppShapes, forcesForbidden);
+        if (rank != RANK_QUIET)
+            return (long) rank << RANK_SHIFT | staticScore;
+        int[] k = killers[ply];
+        long key = Math.max(0, staticScore + history[stone.ordinal()][move]);
+        if (move == k[0] || move == k[1])
+            key |= KILLER_BIT;
+        return key;
+    }
+
+    /**
+     * Sorts the moves by their keys in descending order,
+     * with the move from the transposition table first.
+     *
+     * @param list the moves.
+     * @param keys the keys of the moves.
+     * @param count the count of the moves.
+     * @param tableMove the move from the transposition table, or -1.
+     */
+    void sort(int[] list, long[] keys, int count, int tableMove) {
+        for (int i = 1; i < count; i++) {
+            int move = list[i];
+            long key = keys[i];
+            int j = i - 1;
+            while (j >= 0 && keys[j] < key) {
+                list[j + 1] = list[j];
+                keys[j + 1] = keys[j];
+                j--;
+            }
+            list[j + 1] = move;
+            keys[j + 1] = key;
+        }
+        if (tableMove == -1)
+            return;
+        for (int i = 0; i < count; i++) {
+            if (list[i] == tableMove) {
+                long key = keys[i];
+                System.arraycopy(list, 0, list, 1, i);
+                System.arraycopy(keys, 0, keys, 1, i);
+                list[0] = tableMove;
+                keys[0] = key;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records a cutoff, making the move a killer move of the ply
+     * if it's quiet, rewarding it in the history and penalizing
+     * the quiet moves searched before it.
+     *
+     * @param stone the stone type to move.
+     * @param ply the ply.
+     * @param depth the remaining depth.
+     * @param list the moves in the order searched.
+     * @param keys the keys of the moves.
+     * @param index the index of the move causing the cutoff.
+     */
+    void cutoff(StoneType stone, int ply, int depth, int[] list, long[] keys, int index) {
+        if (keys[index] >>> RANK_SHIFT != RANK_QUIET)
+            return;
+        int move = list[index];
+        int[] k = killers[ply];
+        if (k[0] != move) {
+            k[1] = k[0];
+            k[0] = move;
+        }
+        int[] h = history[stone.ordinal()];
+        int bonus = Math.min(depth * depth, HISTORY_MAX);
+        update(h, move, bonus);
+        for (int i = 0; i < index; i++) {
+            if (keys[i] >>> RANK_SHIFT == RANK_QUIET)
+                update(h, list[i], -bonus);
+        }
+    }
+
+    /**
+     * Updates a history score, keeping it within the bound
+     * by decaying it in proportion to the bonus.
+     */
+    private static void update(int[] h, int move, int bonus) {
+        h[move] += bonus - h[move] * Math.abs(bonus) / HISTORY_MAX;
+    }
+}
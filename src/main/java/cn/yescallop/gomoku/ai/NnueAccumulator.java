@@ -0,0 +1,106 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+
+/**
+ * An NnueAccumulator holds the first layer outputs of an
+ * {@link NnueNetwork} for the position of a board, seen from
+ * both stone types.
+ * <p>
+ * Placing or removing a stone adds or subtracts the weights of one
+ * feature for each stone type, instead of computing the layer again.
+ * As int16 arithmetic wraps, subtracting restores the accumulators
+ * exactly. An accumulator is not thread-safe, so every search
+ * thread has its own.
+ *
+ * @author Scallop Ye
+ */
+final class NnueAccumulator {
+
+    private static final StoneType[] STONES = StoneType.values();
+
+    private final NnueNetwork network;
+    private final int cells;
+
+    /**
+     * The accumulators indexed by stone type.
+     */
+    private final short[][] values;
+
+    /**
+     * Creates an accumulator of the position of a board.
+     *
+     * @param network the network.
+     * @param board the board.
+     */
+    NnueAccumulator(NnueNetwork network, Board board) {
+        if (board.size() != network.size)
+            throw new IllegalArgumentException("Board size mismatch");
+        this.network = network;
+        int size = board.size();
+        cells = size * size;
+        values = new short[2][];
+        for (int p = 0; p < 2; p++) {
+            values[p] = network.biases.clone();
+        }
+        for (StoneType stone : STONES) {
+            for (int y = 0; y < size; y++) {
+                for (int bits = board.lineBits(stone, 1, 0, y); bits != 0; bits &= bits - 1) {
+                    add(stone, y * size + Integer.numberOfTrailingZeros(bits));
+                }
+            }
+        }
+    }
+
+    /**
+     * Updates the accumulators after a stone is placed in a grid.
+     *
+     * @param stone the stone type.
+     * @param grid the grid index y * size + x.
+     */
+    void add(StoneType stone, int grid) {
+        int s = stone.ordinal();
+        for (int p = 0; p < 2; p++) {
+            // Own stones first, then the opponent's
+            int feature = (s == p ? 0 : cells) + grid;
+            add(values[p], network.weights[feature]);
+        }
+    }
+
+    /**
+     * Updates the accumulators after a stone is removed from a grid.
+     *
+     * @param stone the stone type.
+     * @param grid the grid index y * size + x.
+     */
+    void remove(StoneType stone, int grid) {
+        int s = stone.ordinal();
+        for (int p = 0; p < 2; p++) {
+            int feature = (s == p ? 0 : cells) + grid;
+            subtract(values[p], network.weights[feature]);
+        }
+    }
+
+    /**
+     * Evaluates the position.
+     *
+     * @param stone the stone type to move.
+     * @return the score for the stone type to move.
+     */
+    int evaluate(StoneType stone) {
+        return network.evaluate(values[stone.ordinal()], values[stone.opposite().ordinal()]);
+    }
+
+    private static void add(short[] acc, short[] weights) {
+        for (int i = 0; i < acc.length; i++) {
+            acc[i] += weights[i];
+        }
+    }
+
+    private static void subtract(short[] acc, short[] weights) {
+        for (int i = 0; i < acc.length; i++) {
+            acc[i] -= weights[i];
+        }
+    }
+}
@@ -0,0 +1,168 @@
+package cn.yescallop.gomoku.ai;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * An NnueNetwork is a small quantized neural network evaluating
+ * positions, whose first layer is updated incrementally by
+ * an {@link NnueAccumulator} as moves are made and unmade.
+ * <p>
+ * The input features are the stones of a board seen from each stone
+ * type, the own stones and the opponent's stones in each grid, which
+ * the first layer maps to an int16 accumulator per stone type. The
+ * accumulators of the stone type to move and the opponent are clipped
+ * to [0, {@value #CLIP}] and reduced by the output layer to a score
+ * for the stone type to move.
+ * <p>
+ * A network is loaded from a file of little-endian values:
+ * <ul>
+ * <li>the magic "NNUE", the version 1, the board size, the size
+ * of the hidden layer, and the positive output scale, all int32;</li>
+ * <li>the first layer weights, int16, by feature and then hidden unit,
+ * the features being the own stones and then the opponent's stones,
+ * each indexed by grid y * size + x;</li>
+ * <li>the first layer biases, int16, by hidden unit;</li>
+ * <li>the output weights, int16, for the stone type to move
+ * and then the opponent;</li>
+ * <li>the output bias, int32.</li>
+ * </ul>
+ * The score is the output times the output scale divided by 65536.
+ * The trainer is expected to keep the accumulators within int16.
+ * A network is immutable and thread-safe.
+ *
+ * @author Scallop Ye
+ */
+public final class NnueNetwork {
+
+    private static final int MAGIC = 0x45554E4E; // "NNUE"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * The upper bound of the clipped accumulators.
+     */
+    static final int CLIP = 255;
+
+    final int size;
+    final int hidden;
+    private final int scale;
+
+    /**
+     * The first layer weights indexed by feature and hidden unit,
+     * a row per feature so that the updates vectorize.
+     */
+    final short[][] weights;
+    final short[] biases;
+
+    /**
+     * The output weights for the stone type to move and the opponent.
+     */
+    private final short[] ownWeights;
+    private final short[] oppWeights;
+    private final int outputBias;
+
+    private NnueNetwork(int size, int hidden, int scale, short[][] weights, short[] biases,
+                        short[] ownWeights, short[] oppWeights, int outputBias) {
+        this.size = size;
+        this.hidden = hidden;
+        this.scale = scale;
+        this.weights = weights;
+        this.biases = biases;
+        this.ownWeights = ownWeights;
+        this.oppWeights = oppWeights;
+        this.outputBias = outputBias;
+    }
+
+    /**
+     * Loads a network file.
+     *
+     * @param path the path of the file.
+     * @return the network.
+     * @throws IOException if an I/O error occurs or the file is not a network.
+     */
+    public static NnueNetwork load(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+        if (buffer.remaining() < HEADER_SIZE || buffer.getInt() != MAGIC)
+            throw new IOException("Not a network file");
+        if (buffer.getInt() != VERSION)
+            throw new IOException("Unsupported network version");
+        int size = buffer.getInt();
+        int hidden = buffer.getInt();
+        int scale = buffer.getInt();
+        if (size < 1 || size > 32 || hidden < 1 || hidden > 4096 || scale < 1)
+            throw new IOException("Corrupted network file");
+        int features = 2 * size * size;
+        long expected = HEADER_SIZE + 2L * ((long) features * hidden + hidden + 2 * hidden) + 4;
+        if (buffer.capacity() != expected)
+            throw new IOException("Corrupted network file");
+
+        ShortBuffer shorts = buffer.asShortBuffer();
+        short[][] weights = new short[features][hidden];
+        for (short[] row : weights) {
+            shorts.get(row);
+        }
+        short[] biases = new short[hidden];
+        short[] ownWeights = new short[hidden];
+        short[] oppWeights = new short[hidden];
+        shorts.get(biases).get(ownWeights).get(oppWeights);
+        buffer.position(buffer.position() + 2 * shorts.position());
+        int outputBias = buffer.getInt();
+
+        // The output is summed in int, and so is the score scaled,
+        // neither of which must overflow
+        long bound = Math.abs((long) outputBias);
+        for (int i = 0; i < hidden; i++) {
+            bound += (long) (Math.abs(ownWeights[i]) + Math.abs(oppWeights[i])) * CLIP;
+        }
+        if (bound > Integer.MAX_VALUE)
+            throw new IOException("Output weights too large");
+        if (bound * scale >> 16 > Integer.MAX_VALUE)
+            throw new IOException("Output scale too large");
+        return new NnueNetwork(size, hidden, scale, weights, biases, ownWeights, oppWeights, outputBias);
+    }
+
+    /**
+     * Gets the board size of the network.
+     *
+     * @return the board size.
+     */
+    public int boardSize() {
+        return size;
+    }
+
+    /**
+     * Gets the size of the hidden layer.
+     *
+     * @return the size.
+     */
+    public int hiddenSize() {
+        return hidden;
+    }
+
+    /**
+     * Computes the score from the accumulators.
+     *
+     * @param own the accumulator of the stone type to move.
+     * @param opp the accumulator of the opponent.
+     * @return the score for the stone type to move.
+     */
+    int evaluate(short[] own, short[] opp) {
+        return (int) ((long) (outputBias + dot(own, ownWeights) + dot(opp, oppWeights)) * scale >> 16);
+    }
+
+    /**
+     * Computes the dot product of the clipped accumulator and the weights.
+     */
+    private static int dot(short[] acc, short[] weights) {
+        int sum = 0;
+        for (int i = 0; i < acc.length; i++) {
+            sum += Math.min(Math.max(acc[i], 0), CLIP) * weights[i];
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,352 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.game.Zobrist;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+
+/**
+ * An OpeningBook holds the statistics of the moves played
+ * in positions of the openings, in a file mapped into memory.
+ * <p>
+ * The positions are keyed by the least of their Zobrist keys over
+ * the eight symmetries of the board, covering the stones and the
+ * stone type to move, so that a symmetric position shares the entries.
+ * The file holds records of a fixed size, sorted by the key and then
+ * by the count of games in descending order, and is searched by
+ * binary search. Opening a book maps the file and reads nothing more,
+ * and probing allocates nothing.
+ * <p>
+ * Since the positions are keyed by the stones only, a book covers
+ * all the opening rules, such as Swap2, RIF or Soosyrv, whose moves
+ * lead to the positions. Books are written by a {@link Writer}.
+ * A book is thread-safe.
+ *
+ * @author Scallop Ye
+ */
+public final class OpeningBook {
+
+    private static final int MAGIC = 0x47424F4B; // "GBOK"
+    private static final int VERSION = 1;
+
+    /**
+     * The size in bytes of the header: the magic, the version, the board
+     * size, the ordinal of the rule type and the count of records.
+     */
+    private static final int HEADER_SIZE = 20;
+
+    /**
+     * The size in bytes of a record: the key, the move in the
+     * canonical orientation, the count of games and the score.
+     */
+    private static final int RECORD_SIZE = 20;
+
+    /**
+     * The key mixed into the keys when White is to move.
+     */
+    private static final long WHITE_TO_MOVE_KEY = 0xc2b2ae3d27d4eb4fL;
+
+    /**
+     * The inverses of the symmetries.
+     */
+    private static final int[] INVERSE = {0, 1, 2, 3, 4, 6, 5, 7};
+
+    private static final StoneType[] STONES = StoneType.values();
+
+    private final MappedByteBuffer buffer;
+    private final int size;
+    private final Rule.Type ruleType;
+    private final int count;
+
+    private OpeningBook(MappedByteBuffer buffer, int size, Rule.Type ruleType, int count) {
+        this.buffer = buffer;
+        this.size = size;
+        this.ruleType = ruleType;
+        this.count = count;
+    }
+
+    /**
+     * Opens a book file.
+     *
+     * @param path the path of the file.
+     * @return the book.
+     * @throws IOException if an I/O error occurs or the file is not a book.
+     */
+    public static OpeningBook open(Path path) throws IOException {
+        MappedByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_SIZE || length > Integer.MAX_VALUE)
+                throw new IOException("Not a book file");
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        }
+        if (buffer.getInt(0) != MAGIC)
+            throw new IOException("Not a book file");
+        if (buffer.getInt(4) != VERSION)
+            throw new IOException("Unsupported book version");
+        int size = buffer.getInt(8);
+        int rule = buffer.getInt(12);
+        int count = buffer.getInt(16);
+        Rule.Type[] types = Rule.Type.values();
+        if (rule < 0 || rule >= types.length || count < 0 ||
+                HEADER_SIZE + (long) count * RECORD_SIZE != buffer.capacity())
+            throw new IOException("Corrupted book file");
+        return new OpeningBook(buffer, size, types[rule], count);
+    }
+
+    /**
+     * Gets the board size of the book.
+     *
+     * @return the board size.
+     */
+    public int boardSize() {
+        return size;
+    }
+
+    /**
+     * Gets the type of the rule of the book.
+     *
+     * @return the type of the rule.
+     */
+    public Rule.Type ruleType() {
+        return ruleType;
+    }
+
+    /**
+     * Gets the count of records in the book.
+     *
+     * @return the count of records.
+     */
+    public int recordCount() {
+        return count;
+    }
+
+    /**
+     * Probes the move played in the most games in a position,
+     * skipping the grids offered.
+     *
+     * @param board the board.
+     * @return the move as a grid index y * size + x,
+     * or -1 if no move of the position is in the book.
+     */
+    public int probe(Board board) {
+        if (board.size() != size)
+            return -1;
+        int sym = canonicalSymmetry(board);
+        long key = keyOf(board, sym);
+        int i = find(key);
+        if (i == -1)
+            return -1;
+        for (; i < count && buffer.getLong(offset(i)) == key; i++) {
+            int move = transform(INVERSE[sym], buffer.getInt(offset(i) + 8), size);
+            int x = move % size, y = move / size;
+            if (board.isEmpty(x, y) && !board.getGrid(x, y).isOffered())
+                return move;
+        }
+        return -1;
+    }
+
+    /**
+     * Probes the moves played in a position, in descending
+     * order of the count of games.
+     *
+     * @param board the board.
+     * @param moves the array to store the moves as grid indexes y * size + x.
+     * @param games the array to store the counts of games, or null.
+     * @param scores the array to store the scores in half points
+     * for the side to move, or null.
+     * @return the count of moves stored, at most the length of moves.
+     */
+    public int probe(Board board, int[] moves, int[] games, int[] scores) {
+        if (board.size() != size)
+            return 0;
+        int sym = canonicalSymmetry(board);
+        long key = keyOf(board, sym);
+        int i = find(key);
+        if (i == -1)
+            return 0;
+        int n = 0;
+        for (; i < count && n < moves.length; i++, n++) {
+            int off = offset(i);
+            if (buffer.getLong(off) != key)
+                break;
+            moves[n] = transform(INVERSE[sym], buffer.getInt(off + 8), size);
+            if (games != null)
+                games[n] = buffer.getInt(off + 12);
+            if (scores != null)
+                scores[n] = buffer.getInt(off + 16);
+        }
+        return n;
+    }
+
+    /**
+     * Finds the first record of a key by binary search.
+     *
+     * @return the index, or -1 if not found.
+     */
+    private int find(long key) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (buffer.getLong(offset(mid)) < key) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo < count && buffer.getLong(offset(lo)) == key ? lo : -1;
+    }
+
+    private static int offset(int index) {
+        return HEADER_SIZE + index * RECORD_SIZE;
+    }
+
+    /**
+     * Finds the symmetry in which the key of a board is the least.
+     */
+    private static int canonicalSymmetry(Board board) {
+        int best = 0;
+        long bestKey = keyOf(board, 0);
+        for (int sym = 1; sym < 8; sym++) {
+            long key = keyOf(board, sym);
+            if (key < bestKey) {
+                best = sym;
+                bestKey = key;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * Computes the key of a board transformed by a symmetry.
+     */
+    private static long keyOf(Board board, int sym) {
+        int size = board.size();
+        long key = board.stoneToMove() == StoneType.WHITE ? WHITE_TO_MOVE_KEY : 0;
+        for (StoneType stone : STONES) {
+            for (int y = 0; y < size; y++) {
+                for (int bits = board.lineBits(stone, 1, 0, y); bits != 0; bits &= bits - 1) {
+                    int g = transform(sym, y * size + Integer.numberOfTrailingZeros(bits), size);
+                    key ^= Zobrist.key(stone, g % size, g / size);
+                }
+            }
+        }
+        return key;
+    }
+
+    /**
+     * Transforms a grid index by one of the eight symmetries.
+     */
+    private static int transform(int sym, int grid, int size) {
+        int x = grid % size, y = grid / size;
+        int m = size - 1;
+        switch (sym) {
+            case 1:
+                return y * size + m - x;
+            case 2:
+                return (m - y) * size + x;
+            case 3:
+                return (m - y) * size + m - x;
+            case 4:
+                return x * size + y;
+            case 5:
+                return x * size + m - y;
+            case 6:
+                return (m - x) * size + y;
+            case 7:
+                return (m - x) * size + m - y;
+            default:
+                return grid;
+        }
+    }
+
+    /**
+     * A Writer collects the statistics of moves and writes a book.
+     * Statistics added for symmetric positions and moves are merged.
+     */
+    public static final class Writer {
+
+        private final int size;
+        private final Rule.Type ruleType;
+
+        /**
+         * The statistics indexed by the key and the canonical move,
+         * each being the count of games and the score.
+         */
+        private final Map<Long, Map<Integer, int[]>> stats = new HashMap<>();
+
+        /**
+         * Creates a writer.
+         *
+         * @param boardSize the board size of the book.
+         * @param ruleType the type of the rule of the book.
+         */
+        public Writer(int boardSize, Rule.Type ruleType) {
+            this.size = boardSize;
+            this.ruleType = Objects.requireNonNull(ruleType);
+        }
+
+        /**
+         * Adds the statistics of a move in a position.
+         *
+         * @param board the board.
+         * @param x the x coordinate of the move.
+         * @param y the y coordinate of the move.
+         * @param games the count of games.
+         * @param score the score in half points for the side to move.
+         */
+        public void add(Board board, int x, int y, int games, int score) {
+            if (board.size() != size)
+                throw new IllegalArgumentException("Board size mismatch");
+            if (!board.isEmpty(x, y))
+                throw new IllegalArgumentException("Not an empty grid");
+            int sym = canonicalSymmetry(board);
+            int move = transform(sym, y * size + x, size);
+            int[] s = stats.computeIfAbsent(keyOf(board, sym), k -> new HashMap<>())
+                    .computeIfAbsent(move, k -> new int[2]);
+            s[0] += games;
+            s[1] += score;
+        }
+
+        /**
+         * Writes the book to a file, replacing it atomically.
+         *
+         * @param path the path of the file.
+         * @throws IOException if an I/O error occurs.
+         */
+        public void write(Path path) throws IOException {
+            List<long[]> records = new ArrayList<>();
+            stats.forEach((key, moves) -> moves.forEach((move, s) ->
+                    records.add(new long[]{key, move, s[0], s[1]})));
+            records.sort(Comparator.<long[]>comparingLong(r -> r[0])
+                    .thenComparingLong(r -> -r[2])
+                    .thenComparingLong(r -> r[1]));
+
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(
+                    new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(size);
+                out.writeInt(ruleType.ordinal());
+                out.writeInt(records.size());
+                for (long[] r : records) {
+                    out.writeLong(r[0]);
+                    out.writeInt((int) r[1]);
+                    out.writeInt((int) r[2]);
+                    out.writeInt((int) r[3]);
+                }
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+    }
+}
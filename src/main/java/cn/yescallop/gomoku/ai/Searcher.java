@@ -0,0 +1,531 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.ForbiddenPointMap;
+import cn.yescallop.gomoku.rule.Opening;
+import cn.yescallop.gomoku.rule.Rule;
+
+import static cn.yescallop.gomoku.ai.TranspositionTable.*;
+import static cn.yescallop.gomoku.ai.ThreatScanner.DELTA_X;
+import static cn.yescallop.gomoku.ai.ThreatScanner.DELTA_Y;
+import static cn.yescallop.gomoku.game.StoneShape.*;
+
+/**
+ * A Searcher runs a negamax alpha-beta search with
+ * iterative deepening on a detached board.
+ * <p>
+ * Moves are grid indexes y * size + x. Scores are from the
+ * perspective of the stone type to move, and a win in n plies
+ * from the root is scored WIN_SCORE - n.
+ * <p>
+ * Under Renju rules, the forbidden points of Black are kept in a
+ * {@link ForbiddenPointMap} updated as moves are made and unmade,
+ * and are never generated for Black. Only an exact five wins for
+ * Black, and a five point of White forbidden for Black can't be
+ * blocked, so the fours of White forcing Black onto forbidden
+ * points are searched first.
+ * <p>
+ * The leaves are scored by the shapes of the candidate moves,
+ * or by an {@link NnueNetwork} if one is set, whose accumulator
+ * is updated as moves are made and unmade.
+ * <p>
+ * If an opening is set, the moves it limits to some areas
+ * of the board are generated in those areas only.
+ *
+ * @author Scallop Ye
+ */
+final class Searcher {
+
+    static final int WIN_SCORE = 1_000_000_000;
+    static final int MAX_PLY = 64;
+
+    /**
+     * Scores beyond this are wins or losses.
+     */
+    static final int WIN_THRESHOLD = WIN_SCORE - 2 * MAX_PLY;
+
+    /**
+     * The bound of the heuristic scores.
+     */
+    private static final int HEURISTIC_LIMIT = WIN_SCORE / 2;
+
+    /**
+     * The maximum count of moves searched in a node.
+     */
+    private static final int MAX_CANDIDATES = 20;
+
+    /**
+     * The interval in nodes of checking the deadline, minus one.
+     */
+    private static final int CHECK_INTERVAL = 1023;
+
+    /**
+     * The result of the generation when the stone type to move can win.
+     */
+    private static final int GENERATED_WIN = -1;
+
+    /**
+     * The result of the generation when the opponent
+     * can win in more than one grid.
+     */
+    private static final int GENERATED_LOSS = -2;
+
+    private final Board board;
+    private final int size;
+    private final Rule.Type ruleType;
+    private final TranspositionTable table;
+    private final MoveOrderer orderer;
+
+    /**
+     * The forbidden points of Black, or null unless under Renju rules.
+     */
+    private final ForbiddenPointMap forbidden;
+
+    /**
+     * The candidate moves and their ordering keys, indexed by ply.
+     */
+    private final int[][] moves;
+    private final long[][] moveScores;
+
+    /**
+     * Temporary row masks of the candidate generation.
+     */
+    private final int[] rowMasks;
+    private final int[] nearMasks;
+
+    /**
+     * The sums of the scores of the candidates
+     * for both sides, set by the last generation.
+     */
+    private long ownSum, oppSum;
+
+    /**
+     * The accumulator of the network, or null to score by the shapes.
+     */
+    private NnueAccumulator accumulator;
+
+    /**
+     * The opening of the rule, or null if none.
+     */
+    private Opening opening;
+
+    private long deadline;
+    private TimeManager timeManager;
+    private volatile boolean stopped;
+    private long nodes;
+
+    /**
+     * The winning move found by the last generation.
+     */
+    private int winMove;
+
+    private int rootBestMove = -1;
+    private int rootScore;
+    private int completedDepth;
+    private int iterationBestMove;
+
+    /**
+     * Creates a searcher.
+     *
+     * @param board the detached board to search on.
+     * @param ruleType the type of the rule.
+     * @param table the transposition table.
+     */
+    Searcher(Board board, Rule.Type ruleType, TranspositionTable table) {
+        this(board, ruleType, table, new MoveOrderer(board.size(), ruleType, MAX_PLY));
+    }
+
+    /**
+     * Creates a searcher with a move orderer kept across searches.
+     *
+     * @param board the detached board to search on.
+     * @param ruleType the type of the rule.
+     * @param table the transposition table.
+     * @param orderer the move orderer, used by this searcher only.
+     */
+    Searcher(Board board, Rule.Type ruleType, TranspositionTable table, MoveOrderer orderer) {
+        this.board = board;
+        this.size = board.size();
+        this.ruleType = ruleType;
+        this.table = table;
+        this.orderer = orderer;
+        forbidden = ruleType == Rule.Type.STANDARD_RENJU ? new ForbiddenPointMap(board) : null;
+        int cells = size * size;
+        moves = new int[MAX_PLY + 1][cells];
+        moveScores = new long[MAX_PLY + 1][cells];
+        rowMasks = new int[size];
+        nearMasks = new int[size];
+    }
+
+    Board board() {
+        return board;
+    }
+
+    long nodes() {
+        return nodes;
+    }
+
+    /**
+     * Sets the time manager deciding whether to start
+     * another iteration, or null to search until the deadline.
+     *
+     * @param timeManager the time manager.
+     */
+    void setTimeManager(TimeManager timeManager) {
+        this.timeManager = timeManager;
+    }
+
+    /**
+     * Sets the network scoring the leaves, or null to score
+     * by the shapes of the candidate moves.
+     *
+     * @param network the network.
+     */
+    void setNetwork(NnueNetwork network) {
+        accumulator = network == null ? null : new NnueAccumulator(network, board);
+    }
+
+    /**
+     * Sets the opening limiting the areas of the moves, or null if none.
+     *
+     * @param opening the opening.
+     */
+    void setOpening(Opening opening) {
+        this.opening = opening;
+    }
+
+    /**
+     * Stops the search from another thread,
+     * whether it has started or not.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * Searches with iterative deepening until the deadline,
+     * the maximum depth, or a win or loss is found.
+     *
+     * @param stone the stone type to move.
+     * @param deadline the deadline in System.nanoTime().
+     * @param maxDepth the maximum depth.
+     * @return the best move, or -1 if there's no move.
+     */
+    int think(StoneType stone, long deadline, int maxDepth) {
+        return think(stone, deadline, 1, maxDepth);
+    }
+
+    /**
+     * Searches with iterative deepening from a depth until the deadline,
+     * the maximum depth, or a win or loss is found.
+     * <p>
+     * Helper threads of a shared transposition table start at
+     * staggered depths, so that they fill the table ahead of
+     * the main thread instead of repeating its work.
+     *
+     * @param stone the stone type to move.
+     * @param deadline the deadline in System.nanoTime().
+     * @param startDepth the depth of the first iteration.
+     * @param maxDepth the maximum depth.
+     * @return the best move, or -1 if there's no move.
+     */
+    int think(StoneType stone, long deadline, int startDepth, int maxDepth) {
+        this.deadline = deadline;
+        nodes = 0;
+        rootBestMove = -1;
+        completedDepth = 0;
+        orderer.age();
+        for (int depth = Math.max(1, startDepth); depth <= Math.min(maxDepth, MAX_PLY); depth++) {
+            iterationBestMove = -1;
+            int score = search(stone, depth, -WIN_SCORE, WIN_SCORE, 0);
+            if (stopped)
+                break;
+            rootBestMove = iterationBestMove;
+            rootScore = score;
+            completedDepth = depth;
+            if (rootBestMove == -1 || Math.abs(score) >= WIN_THRESHOLD)
+                break;
+            if (timeManager != null && !timeManager.iterationCompleted(rootBestMove))
+                break;
+        }
+        if (rootBestMove == -1) {
+            // No iteration completed, falls back to the best ordered move
+            int count = generate(stone, 0, true, -1);
+            if (count == GENERATED_WIN) {
+                rootBestMove = winMove;
+            } else if (count != 0) {
+                rootBestMove = moves[0][0];
+            }
+        }
+        return rootBestMove;
+    }
+
+    int bestMove() {
+        return rootBestMove;
+    }
+
+    int rootScore() {
+        return rootScore;
+    }
+
+    int completedDepth() {
+        return completedDepth;
+    }
+
+    private int search(StoneType stone, int depth, int alpha, int beta, int ply) {
+        if ((++nodes & CHECK_INTERVAL) == 0 &&
+                (System.nanoTime() > deadline || Thread.currentThread().isInterrupted()))
+            stopped = true;
+        if (stopped)
+            return 0;
+
+        long key = board.hashKey();
+        int tableMove = -1;
+        long entry = table.probe(key);
+        if (entry != 0) {
+            tableMove = moveOf(entry);
+            if (ply != 0 && depthOf(entry) >= depth) {
+                int score = scoreFromTable(scoreOf(entry), ply);
+                int bound = boundOf(entry);
+                if (bound == BOUND_EXACT ||
+                        (bound == BOUND_LOWER && score >= beta) ||
+                        (bound == BOUND_UPPER && score <= alpha))
+                    return score;
+            }
+        }
+
+        int count = generate(stone, ply, depth > 0,
+                ply == 0 && rootBestMove != -1 ? rootBestMove : tableMove);
+        if (count == GENERATED_WIN) {
+            if (ply == 0)
+                iterationBestMove = winMove;
+            table.store(key, winMove, WIN_SCORE - 1, MAX_DEPTH, BOUND_EXACT);
+            return WIN_SCORE - ply - 1;
+        }
+        if (count == GENERATED_LOSS) {
+            if (ply == 0)
+                iterationBestMove = moves[ply][0]; // Blocks one of them
+            table.store(key, moves[ply][0], -(WIN_SCORE - 2), MAX_DEPTH, BOUND_EXACT);
+            return -(WIN_SCORE - ply - 2);
+        }
+        if (count == 0)
+            return 0; // The board is full
+
+        if (depth == 0 || ply == MAX_PLY)
+            return heuristic(stone);
+
+        int[] list = moves[ply];
+        StoneType opp = stone.opposite();
+        int alphaOrig = alpha;
+        int best = -WIN_SCORE;
+        int bestMove = -1;
+        for (int i = 0; i < count; i++) {
+            int move = list[i];
+            makeMove(move, stone);
+            int score = -search(opp, depth - 1, -beta, -alpha, ply + 1);
+            unmakeMove(move, stone);
+            if (stopped)
+                return 0;
+            if (score > best) {
+                best = score;
+                bestMove = move;
+                if (ply == 0)
+                    iterationBestMove = move;
+                if (score > alpha) {
+                    alpha = score;
+                    if (alpha >= beta) {
+                        orderer.cutoff(stone, ply, depth, list, moveScores[ply], i);
+                        break;
+                    }
+                }
+            }
+        }
+        int bound = best >= beta ? BOUND_LOWER : best > alphaOrig ? BOUND_EXACT : BOUND_UPPER;
+        table.store(key, bestMove, scoreToTable(best, ply), depth, bound);
+        return best;
+    }
+
+    private void makeMove(int move, StoneType stone) {
+        int x = move % size, y = move / size;
+        board.move(x, y, stone);
+        if (forbidden != null)
+            forbidden.push(x, y);
+        if (accumulator != null)
+            accumulator.add(stone, move);
+    }
+
+    private void unmakeMove(int move, StoneType stone) {
+        board.unmove();
+        if (forbidden != null)
+            forbidden.pop();
+        if (accumulator != null)
+            accumulator.remove(stone, move);
+    }
+
+    /**
+     * Converts a score relative to the root into one relative
+     * to the current node, so that a win or loss in the table
+     * keeps its distance when reached from another ply.
+     */
+    static int scoreToTable(int score, int ply) {
+        if (score >= WIN_THRESHOLD)
+            return score + ply;
+        if (score <= -WIN_THRESHOLD)
+            return score - ply;
+        return score;
+    }
+
+    static int scoreFromTable(int score, int ply) {
+        if (score >= WIN_THRESHOLD)
+            return score - ply;
+        if (score <= -WIN_THRESHOLD)
+            return score + ply;
+        return score;
+    }
+
+    private int heuristic(StoneType stone) {
+        long score = accumulator != null ? accumulator.evaluate(stone) : (ownSum - oppSum / 2) / 16;
+        return (int) Math.max(-HEURISTIC_LIMIT, Math.min(HEURISTIC_LIMIT, score));
+    }
+
+    /**
+     * Generates the candidate moves, which are the empty grids
+     * within two grids of a stone, ordered by the move orderer.
+     * If the opponent can win in a grid, only such grids are generated,
+     * and the stone type to move loses if it can't move in one of them.
+     *
+     * @param stone the stone type to move.
+     * @param ply the ply.
+     * @param ordered whether the moves should be ordered and limited.
+     * @param tableMove the move to try first, or -1.
+     * @return the count of the moves, GENERATED_WIN or GENERATED_LOSS.
+     */
+    private int generate(StoneType stone, int ply, boolean ordered, int tableMove) {
+        int[] list = moves[ply];
+        long[] scores = moveScores[ply];
+        StoneType opp = stone.opposite();
+        ownSum = 0;
+        oppSum = 0;
+        int count = 0;
+        int blocks = 0;
+        boolean unblockable = false;
+        boolean ownOverline = GomokuUtil.overlineWins(ruleType, stone);
+        boolean oppOverline = GomokuUtil.overlineWins(ruleType, opp);
+        boolean traps = forbidden != null && stone == StoneType.WHITE && forbidden.count() != 0;
+
+        computeNearMasks();
+        for (int y = 0; y < size; y++) {
+            for (int bits = nearMasks[y]; bits != 0; bits &= bits - 1) {
+                int x = Integer.numberOfTrailingZeros(bits);
+                long ownShapes = GomokuUtil.countShapes(board, x, y, stone);
+                if (isWin(ownShapes, ownOverline)) {
+                    winMove = y * size + x;
+                    return GENERATED_WIN;
+                }
+                long oppShapes = GomokuUtil.countShapes(board, x, y, opp);
+                if (forbidden != null && forbidden.isForbidden(x, y)) {
+                    if (stone == StoneType.BLACK) {
+                        // Black can't move here, nor block a five of White
+                        if (isWin(oppShapes, oppOverline))
+                            unblockable = true;
+                        oppSum += GomokuUtil.evaluate(oppShapes, oppOverline);
+                        continue;
+                    }
+                    oppShapes = 0; // Nor is it a threat of Black
+                }
+                int ownScore = GomokuUtil.evaluate(ownShapes, ownOverline);
+                int oppScore = GomokuUtil.evaluate(oppShapes, oppOverline);
+                ownSum += ownScore;
+                oppSum += oppScore;
+                int cell = y * size + x;
+                long key = 0;
+                if (ordered) {
+                    boolean trap = traps && makesFour(ownShapes) && forcesForbidden(x, y);
+                    key = orderer.key(stone, ply, cell, ownShapes, oppShapes, (long) ownScore + oppScore, trap);
+                }
+                if (isWin(oppShapes, oppOverline)) {
+                    // Keeps the blocking moves at the front
+                    list[count] = list[blocks];
+                    scores[count] = scores[blocks];
+                    list[blocks] = cell;
+                    scores[blocks] = key;
+                    blocks++;
+                } else {
+                    list[count] = cell;
+                    scores[count] = key;
+                }
+                count++;
+            }
+        }
+        if (unblockable && count == 0)
+            return 0; // Nowhere to move, regarded as a full board
+        if (blocks > 1 || unblockable)
+            return GENERATED_LOSS;
+        if (blocks == 1)
+            return 1;
+        if (ordered) {
+            orderer.sort(list, scores, count, tableMove);
+            return Math.min(count, MAX_CANDIDATES);
+        }
+        return count;
+    }
+
+    private static boolean isWin(long shapes, boolean overlineWins) {
+        return FIVE.countIn(shapes) != 0 || (overlineWins && OVERLINE.countIn(shapes) != 0);
+    }
+
+    private static boolean makesFour(long shapes) {
+        return SEMI_OPEN_FOUR.countIn(shapes) != 0 || BROKEN_OVERLINE.countIn(shapes) != 0;
+    }
+
+    /**
+     * Tells whether a stone of White in an empty grid makes a four
+     * whose five point is forbidden for Black.
+     */
+    private boolean forcesForbidden(int x, int y) {
+        for (int d = 0; d < 4; d++) {
+            int bits = board.lineBits(StoneType.WHITE, d, x, y) | 1 << board.linePosition(d, x, y);
+            for (int k = -4; k <= 4; k++) {
+                int fx = x + DELTA_X[d] * k, fy = y + DELTA_Y[d] * k;
+                if (k == 0 || fx < 0 || fx >= size || fy < 0 || fy >= size ||
+                        !board.isEmpty(fx, fy) || !forbidden.isForbidden(fx, fy))
+                    continue;
+                int pos = board.linePosition(d, fx, fy);
+                int row = bits | 1 << pos;
+                int len = Integer.numberOfTrailingZeros(~(row >>> pos)) +
+                        Integer.numberOfLeadingZeros(~(row << (31 - pos))) - 1;
+                if (len >= 5)
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Computes the masks of the empty grids within two grids of a stone.
+     * On an empty board, the center is the only candidate.
+     */
+    private void computeNearMasks() {
+        int full = (1 << size) - 1;
+        boolean any = false;
+        for (int y = 0; y < size; y++) {
+            int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+            any |= row != 0;
+            rowMasks[y] = (row | row << 1 | row << 2 | row >>> 1 | row >>> 2) & full;
+        }
+        for (int y = 0; y < size; y++) {
+            int near = 0;
+            for (int k = Math.max(0, y - 2); k <= Math.min(size - 1, y + 2); k++) {
+                near |= rowMasks[k];
+            }
+            int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+            nearMasks[y] = near & ~row;
+        }
+        if (!any) {
+            int c = size / 2;
+            nearMasks[c] = 1 << c;
+        }
+        GomokuUtil.limitToOpening(opening, board, nearMasks, rowMasks);
+    }
+}
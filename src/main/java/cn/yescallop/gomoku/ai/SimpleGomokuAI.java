@@ -2,11 +2,10 @@ package cn.yescallop.gomoku.ai;
 
 import cn.yescallop.gomoku.game.*;
 import cn.yescallop.gomoku.player.PlayerAdapter;
+import cn.yescallop.gomoku.rule.ForbiddenPointMap;
+import cn.yescallop.gomoku.rule.Opening;
 import cn.yescallop.gomoku.rule.Rule;
-import cn.yescallop.gomoku.rule.StandardRules;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Random;
 
 import static cn.yescallop.gomoku.game.StoneShape.FIVE;
@@ -17,27 +16,81 @@ import static cn.yescallop.gomoku.game.StoneShape.OVERLINE;
  */
 public class SimpleGomokuAI extends PlayerAdapter {
 
+    private static final int[] DELTA_X = {0, 1, 1, 1};
+    private static final int[] DELTA_Y = {1, 0, 1, -1};
+
+    /**
+     * The radius of the line segments through a stone,
+     * in which the shapes of the grids can change with it.
+     */
+    private static final int CHANGE_RADIUS = 5;
+
+    /**
+     * The maximum thinking time of a choice.
+     */
+    private static final long CHOICE_MILLIS = 1000;
+
     private Game game;
     private Board board;
     private int boardSize;
-    private boolean freestyle;
     private Random random;
 
+    /**
+     * The cached shape counts and scores of the empty grids
+     * for both stone types, indexed by stone type and grid.
+     */
+    private long[][] shapeCache;
+    private int[][] scoreCache;
+    private boolean[] cached;
+
+    /**
+     * The grids of the top score.
+     */
+    private int[] moves;
+
+    /**
+     * The grids offered, collected when offering multiple moves.
+     */
+    private int[] offered;
+
+    private Rule.Type ruleType;
+    private Opening opening;
+
+    private TranspositionTable choiceTable;
+    private ChoiceEvaluator evaluator;
+
+    /**
+     * The index of the last move applied to the cache.
+     */
+    private int syncedIndex;
+
     public SimpleGomokuAI() {
         super("Simple Gomoku AI");
     }
 
     @Override
     public void gameStarted(Game game) {
-        Rule rule = game.rule();
-        if (rule != StandardRules.STANDARD_GOMOKU && rule != StandardRules.FREESTYLE_GOMOKU) {
-            throw new IllegalArgumentException("Not Standard or Free-style Gomoku");
-        }
+        Rule.Type type = game.rule().type();
         this.game = game;
         board = game.board();
         boardSize = board.size();
-        freestyle = rule == StandardRules.FREESTYLE_GOMOKU;
         random = new Random();
+        int cells = boardSize * boardSize;
+        shapeCache = new long[2][cells];
+        scoreCache = new int[2][cells];
+        cached = new boolean[cells];
+        moves = new int[cells];
+        offered = new int[cells];
+        ruleType = type;
+        // A separate instance, only asked for the area limits
+        opening = game.rule().newOpening();
+        evaluator = null;
+        syncedIndex = 0;
+    }
+
+    @Override
+    public void opponentMoveMade(Move move) {
+        sync();
     }
 
     @Override
@@ -46,47 +99,105 @@ public class SimpleGomokuAI extends PlayerAdapter {
             int c = boardSize / 2;
             return Move.ofPoint(c, c);
         }
+        sync();
+        Board.Grid forbiddenMove = GomokuUtil.forbiddenMoveToReport(game);
+        if (forbiddenMove != null)
+            return Move.of(forbiddenMove);
         StoneType stone = game.stoneTypeBySide(side);
-        List<Board.Grid> moves = new ArrayList<>();
+        int own = stone.ordinal(), opp = stone.opposite().ordinal();
+        boolean ownOverline = GomokuUtil.overlineWins(ruleType, stone);
+        boolean oppOverline = GomokuUtil.overlineWins(ruleType, stone.opposite());
+        ForbiddenPointMap forbidden = game.forbiddenPointMap();
+        int offeredCount = attr.isMultiple() ? ChoiceEvaluator.offeredGrids(board, offered) : 0;
+        int count = 0;
         int maxScore = 0;
         for (int x = 0; x < boardSize; x++) {
             for (int y = 0; y < boardSize; y++) {
-                Board.Grid grid = board.getGrid(x, y);
-                if (grid.isEmpty()) {
-                    List<StoneShape> s = GomokuUtil.searchShapes(grid, stone);
-                    if (s.contains(FIVE) || (freestyle && s.contains(OVERLINE))) {
-                        return Move.of(grid);
+                if (board.isEmpty(x, y)) {
+                    int cell = y * boardSize + x;
+                    if (ChoiceEvaluator.isSymmetricToAny(cell, offered, offeredCount, boardSize) ||
+                            !GomokuUtil.allowsOpeningMove(opening, board, x, y))
+                        continue;
+                    boolean isForbidden = forbidden != null && forbidden.isForbidden(x, y);
+                    if (isForbidden && stone == StoneType.BLACK)
+                        continue;
+                    if (!cached[cell])
+                        cache(x, y, cell);
+                    long s = shapeCache[own][cell];
+                    if (FIVE.countIn(s) != 0 || (ownOverline && OVERLINE.countIn(s) != 0)) {
+                        return Move.of(board.getGrid(x, y));
                     }
-                    List<StoneShape> so = GomokuUtil.searchShapes(grid, stone.opposite());
-                    if (so.contains(FIVE) || (freestyle && so.contains(OVERLINE))) {
-                        return Move.of(grid);
+                    // Black's shapes in its forbidden points are no threat
+                    long so = isForbidden ? 0 : shapeCache[opp][cell];
+                    if (FIVE.countIn(so) != 0 || (oppOverline && OVERLINE.countIn(so) != 0)) {
+                        return Move.of(board.getGrid(x, y));
                     }
-                    int score1 = GomokuUtil.evaluate(s, freestyle);
-                    int score2 = GomokuUtil.evaluate(so, freestyle);
+                    int score1 = scoreCache[own][cell];
+                    int score2 = isForbidden ? 0 : scoreCache[opp][cell];
                     int score = score1 + score2;
                     if (score > maxScore) {
-                        moves.clear();
-                        moves.add(grid);
+                        count = 0;
+                        moves[count++] = cell;
                         maxScore = score;
-//                        System.out.println(String.format("%s: %d/%d", grid.pointString(), score1, score2));
                     } else if (score == maxScore) {
-                        moves.add(grid);
+                        moves[count++] = cell;
                     }
                 }
             }
         }
+        if (count == 0)
+            return null; // Passes when no grid is left
         boolean draw = false;
         if (maxScore == 0) {
             if (attr.isOfDraw())
                 return null;
             draw = true;
         }
-        Board.Grid grid = moves.get(random.nextInt(moves.size()));
+        int cell = moves[random.nextInt(count)];
+        Board.Grid grid = board.getGrid(cell % boardSize, cell / boardSize);
         return draw ? Move.ofDraw(grid) : Move.of(grid);
     }
 
+    /**
+     * Invalidates the cache along the lines through
+     * the moves made since the last synchronization.
+     */
+    private void sync() {
+        int index = board.currentMoveIndex();
+        for (int i = syncedIndex + 1; i <= index; i++) {
+            Board.Grid grid = board.moveAt(i);
+            for (int d = 0; d < 4; d++) {
+                for (int k = -CHANGE_RADIUS; k <= CHANGE_RADIUS; k++) {
+                    int x = grid.x() + k * DELTA_X[d];
+                    int y = grid.y() + k * DELTA_Y[d];
+                    if (x >= 0 && x < boardSize && y >= 0 && y < boardSize)
+                        cached[y * boardSize + x] = false;
+                }
+            }
+        }
+        syncedIndex = index;
+    }
+
+    private void cache(int x, int y, int cell) {
+        for (StoneType st : StoneType.values()) {
+            long shapes = GomokuUtil.countShapes(board, x, y, st);
+            shapeCache[st.ordinal()][cell] = shapes;
+            scoreCache[st.ordinal()][cell] = GomokuUtil.evaluate(shapes, GomokuUtil.overlineWins(ruleType, st));
+        }
+        cached[cell] = true;
+    }
+
     @Override
     public int requestChoice(ChoiceSet choiceSet, long timeoutMillis) throws Exception {
-        return 0;
+        if (evaluator == null) {
+            // Created on demand, as most games have no choices
+            if (choiceTable == null)
+                choiceTable = new TranspositionTable(1);
+            choiceTable.clear();
+            evaluator = new ChoiceEvaluator(ruleType, opening, choiceTable, null);
+        }
+        long thinkMillis = timeoutMillis == 0 ? CHOICE_MILLIS : Math.min(CHOICE_MILLIS, timeoutMillis / 2);
+        long deadline = System.nanoTime() + thinkMillis * 1_000_000;
+        return evaluator.choose(board, choiceSet, game.stoneTypeBySide(side), deadline);
     }
 }
@@ -0,0 +1,386 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Rule;
+import cn.yescallop.gomoku.rule.RuleHelper;
+
+import java.util.Arrays;
+
+/**
+ * A ThreatScanner finds threats in the line windows of boards
+ * of a size under a rule, and keeps a stack of the moves found,
+ * so that forcing searches run without allocation.
+ * <p>
+ * Moves are grid indexes y * size + x. A scanner is not thread-safe.
+ *
+ * @author Scallop Ye
+ */
+final class ThreatScanner {
+
+    static final int[] DELTA_X = {0, 1, 1, 1};
+    static final int[] DELTA_Y = {1, 0, 1, -1};
+
+    final int size;
+    final Rule.Type ruleType;
+
+    /**
+     * The grid indexes of the starting grids of the lines,
+     * indexed by direction index.
+     */
+    private final int[][] lineStarts;
+
+    /**
+     * The five points found by the last search of five points.
+     */
+    private final int[] fivePoints = new int[2];
+
+    private int[] stack;
+    private int top;
+
+    /**
+     * The stamps marking the moves pushed since {@link #beginUnique()}.
+     */
+    private final int[] marks;
+    private int mark;
+
+    /**
+     * Temporary row masks of {@link #pushEmptyGrids(Board, int)}.
+     */
+    private final int[] rowMasks;
+
+    ThreatScanner(int size, Rule.Type ruleType) {
+        this.size = size;
+        this.ruleType = ruleType;
+        int cells = size * size;
+        lineStarts = new int[4][];
+        for (int d = 0; d < 4; d++) {
+            int[] starts = new int[cells];
+            int count = 0;
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    int px = x - DELTA_X[d], py = y - DELTA_Y[d];
+                    if (px < 0 || py < 0 || py >= size)
+                        starts[count++] = y * size + x;
+                }
+            }
+            lineStarts[d] = Arrays.copyOf(starts, count);
+        }
+        stack = new int[cells * 4];
+        marks = new int[cells];
+        rowMasks = new int[size];
+    }
+
+    int top() {
+        return top;
+    }
+
+    int get(int i) {
+        return stack[i];
+    }
+
+    void set(int i, int cell) {
+        stack[i] = cell;
+    }
+
+    /**
+     * Pops the moves above an index.
+     *
+     * @param top the new top index.
+     */
+    void truncate(int top) {
+        this.top = top;
+    }
+
+    void push(int cell) {
+        if (top == stack.length)
+            stack = Arrays.copyOf(stack, stack.length * 2);
+        stack[top++] = cell;
+    }
+
+    /**
+     * Starts pushing moves with {@link #pushUnique(int)}.
+     */
+    void beginUnique() {
+        if (++mark == 0) {
+            Arrays.fill(marks, 0);
+            mark = 1;
+        }
+    }
+
+    /**
+     * Pushes a move unless it is pushed since {@link #beginUnique()}.
+     *
+     * @param cell the move.
+     */
+    void pushUnique(int cell) {
+        if (marks[cell] != mark) {
+            marks[cell] = mark;
+            push(cell);
+        }
+    }
+
+    /**
+     * Pushes the empty grids within a distance of a stone,
+     * or the center if the board is empty.
+     *
+     * @param board the board.
+     * @param distance the Chebyshev distance,
+     * or the size to push all the empty grids.
+     */
+    void pushEmptyGrids(Board board, int distance) {
+        int full = (1 << size) - 1;
+        boolean any = false;
+        for (int y = 0; y < size; y++) {
+            int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+            any |= row != 0;
+            int mask = row;
+            for (int k = 1; k <= distance && k < size; k++) {
+                mask |= row << k | row >>> k;
+            }
+            rowMasks[y] = mask & full;
+        }
+        if (!any) {
+            push(size / 2 * size + size / 2);
+            return;
+        }
+        for (int y = 0; y < size; y++) {
+            int near = 0;
+            for (int k = Math.max(0, y - distance); k <= Math.min(size - 1, y + distance); k++) {
+                near |= rowMasks[k];
+            }
+            int row = board.lineBits(StoneType.BLACK, 1, 0, y) | board.lineBits(StoneType.WHITE, 1, 0, y);
+            for (int bits = near & ~row; bits != 0; bits &= bits - 1) {
+                push(y * size + Integer.numberOfTrailingZeros(bits));
+            }
+        }
+    }
+
+    /**
+     * Pushes the empty grids in the windows of all the lines
+     * holding a count of stones of a stone type and no opposite stone,
+     * unique since {@link #beginUnique()}.
+     *
+     * @param board the board.
+     * @param stone the stone type.
+     * @param width the width of the windows.
+     * @param inner whether only the inner grids of the windows count,
+     * in which case the grids at both ends must be empty.
+     * @param stones the count of stones.
+     */
+    void pushWindowGrids(Board board, StoneType stone, int width, boolean inner, int stones) {
+        StoneType opposite = stone.opposite();
+        int full = (1 << width) - 1;
+        int innerMask = inner ? full & ~1 & ~(1 << (width - 1)) : full;
+        for (int d = 0; d < 4; d++) {
+            for (int start : lineStarts[d]) {
+                int sx = start % size, sy = start / size;
+                int len = board.lineLength(d, sx, sy);
+                int own = board.lineBits(stone, d, sx, sy);
+                if (len < width || Integer.bitCount(own) < stones)
+                    continue;
+                int opp = board.lineBits(opposite, d, sx, sy);
+                for (int s = 0; s <= len - width; s++) {
+                    int w = full << s;
+                    int in = innerMask << s;
+                    if (((opp | own & ~in) & w) != 0 || Integer.bitCount(own & in) != stones)
+                        continue;
+                    for (int e = ~own & in; e != 0; e &= e - 1) {
+                        int p = Integer.numberOfTrailingZeros(e);
+                        pushUnique((sy + DELTA_Y[d] * p) * size + sx + DELTA_X[d] * p);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Pushes the defenses against the open threes of a stone type,
+     * which are the empty grids of the six-grid windows in which
+     * a three would become an open four, unique since {@link #beginUnique()}.
+     * The board must be detached.
+     *
+     * @param board the board.
+     * @param stone the stone type.
+     * @param x the x coordinate of the grid whose lines are searched,
+     * or -1 to search the whole board.
+     * @param y the y coordinate.
+     * @return whether an open three is found.
+     */
+    boolean pushThreeDefenses(Board board, StoneType stone, int x, int y) {
+        boolean found = false;
+        for (int d = 0; d < 4; d++) {
+            if (x >= 0) {
+                int pos = board.linePosition(d, x, y);
+                int len = board.lineLength(d, x, y);
+                int sx = x - DELTA_X[d] * pos, sy = y - DELTA_Y[d] * pos;
+                found |= pushThreeDefenses(board, stone, d, sx, sy, Math.max(0, pos - 4), Math.min(pos - 1, len - 6));
+            } else {
+                for (int start : lineStarts[d]) {
+                    int sx = start % size, sy = start / size;
+                    int len = board.lineLength(d, sx, sy);
+                    found |= pushThreeDefenses(board, stone, d, sx, sy, 0, len - 6);
+                }
+            }
+        }
+        return found;
+    }
+
+    private boolean pushThreeDefenses(Board board, StoneType stone, int d, int sx, int sy, int from, int to) {
+        int own = board.lineBits(stone, d, sx, sy);
+        if (Integer.bitCount(own) < 3)
+            return false;
+        int opp = board.lineBits(stone.opposite(), d, sx, sy);
+        boolean found = false;
+        for (int s = from; s <= to; s++) {
+            int w = 0x3f << s;
+            int in = 0x1e << s;
+            if (((opp | own & ~in) & w) != 0 || Integer.bitCount(own & in) != 3)
+                continue;
+            int p = Integer.numberOfTrailingZeros(~own & in);
+            if (!makesOpenFour(board, sx + DELTA_X[d] * p, sy + DELTA_Y[d] * p, stone))
+                continue;
+            found = true;
+            for (int e = ~own & w; e != 0; e &= e - 1) {
+                int q = Integer.numberOfTrailingZeros(e);
+                pushUnique((sy + DELTA_Y[d] * q) * size + sx + DELTA_X[d] * q);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Tells whether a stone of a type in an empty grid
+     * makes two five points, which cannot both be blocked.
+     */
+    private boolean makesOpenFour(Board board, int x, int y, StoneType stone) {
+        if (isForbidden(board, stone, x, y))
+            return false;
+        board.move(x, y, stone);
+        boolean res = fivePointsThrough(board, x, y, stone) >= 2;
+        board.unmove();
+        return res;
+    }
+
+    /**
+     * Gets a five point found by the last search of five points.
+     *
+     * @param i the index, 0 or 1.
+     * @return the five point.
+     */
+    int fivePoint(int i) {
+        return fivePoints[i];
+    }
+
+    /**
+     * Finds the five points of a stone type on the whole board,
+     * keeping up to two of them.
+     *
+     * @param board the board.
+     * @param stone the stone type.
+     * @return the count of the five points found, up to two.
+     */
+    int scanFivePoints(Board board, StoneType stone) {
+        int count = 0;
+        for (int d = 0; d < 4 && count < 2; d++) {
+            for (int start : lineStarts[d]) {
+                int sx = start % size, sy = start / size;
+                int len = board.lineLength(d, sx, sy);
+                count = addFivePoints(board, stone, d, sx, sy, 0, len - 5, count);
+                if (count == 2)
+                    break;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Finds the five points of a stone type on the lines
+     * through a grid, keeping up to two of them.
+     *
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param stone the stone type.
+     * @return the count of the five points found, up to two.
+     */
+    int fivePointsThrough(Board board, int x, int y, StoneType stone) {
+        int count = 0;
+        for (int d = 0; d < 4 && count < 2; d++) {
+            int pos = board.linePosition(d, x, y);
+            int len = board.lineLength(d, x, y);
+            int sx = x - DELTA_X[d] * pos, sy = y - DELTA_Y[d] * pos;
+            count = addFivePoints(board, stone, d, sx, sy, Math.max(0, pos - 4), Math.min(pos, len - 5), count);
+        }
+        return count;
+    }
+
+    /**
+     * Adds the five points in the five-grid windows of a line
+     * holding four stones of a stone type and no opposite stone.
+     *
+     * @param board the board.
+     * @param stone the stone type.
+     * @param d the direction index.
+     * @param sx the x coordinate of the start of the line.
+     * @param sy the y coordinate of the start of the line.
+     * @param from the first window start position.
+     * @param to the last window start position.
+     * @param count the count of the five points found.
+     * @return the new count, up to two.
+     */
+    private int addFivePoints(Board board, StoneType stone, int d, int sx, int sy, int from, int to, int count) {
+        int own = board.lineBits(stone, d, sx, sy);
+        if (Integer.bitCount(own) < 4)
+            return count;
+        int opp = board.lineBits(stone.opposite(), d, sx, sy);
+        for (int s = from; s <= to && count < 2; s++) {
+            int w = 0x1f << s;
+            if ((opp & w) != 0 || Integer.bitCount(own & w) != 4)
+                continue;
+            int p = Integer.numberOfTrailingZeros(~own & w);
+            int x = sx + DELTA_X[d] * p, y = sy + DELTA_Y[d] * p;
+            int cell = y * size + x;
+            if ((count == 0 || fivePoints[0] != cell) && makesFive(board, x, y, stone))
+                fivePoints[count++] = cell;
+        }
+        return count;
+    }
+
+    /**
+     * Tells whether a stone of a type in an empty grid makes a five
+     * that wins under the rule.
+     *
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param stone the stone type.
+     * @return whether a five is made.
+     */
+    boolean makesFive(Board board, int x, int y, StoneType stone) {
+        boolean overlineWins = GomokuUtil.overlineWins(ruleType, stone);
+        for (int d = 0; d < 4; d++) {
+            int pos = board.linePosition(d, x, y);
+            int bits = board.lineBits(stone, d, x, y) | 1 << pos;
+            int len = Integer.numberOfTrailingZeros(~(bits >>> pos)) +
+                    Integer.numberOfLeadingZeros(~(bits << (31 - pos))) - 1;
+            if (len == 5 || (len > 5 && overlineWins))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Tells whether a move is forbidden under the rule.
+     *
+     * @param board the board.
+     * @param stone the stone type.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return whether the move is forbidden.
+     */
+    boolean isForbidden(Board board, StoneType stone, int x, int y) {
+        return ruleType == Rule.Type.STANDARD_RENJU && stone == StoneType.BLACK &&
+                RuleHelper.checkForbiddenMove(RuleHelper.countShapes(board, x, y));
+    }
+}
@@ -0,0 +1,190 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Game;
+import cn.yescallop.gomoku.game.Side;
+
+import java.util.OptionalLong;
+
+/**
+ * A TimeManager allocates the thinking time of the moves of a player.
+ * <p>
+ * When a move is requested, a soft and a hard deadline are computed
+ * from the remaining game time, the move index, and the timeout of
+ * the request. The hard deadline is never passed, while the soft
+ * deadline is checked between the iterations of a search, extended
+ * when the best move changes and shortened when it stays the same.
+ * <p>
+ * The time the game clock loses beyond the thinking time of the player,
+ * spent by the framework in requesting the moves, is measured from
+ * the remaining game time and reserved from later moves.
+ * A manager is meant to be used for one player in one game.
+ *
+ * @author Scallop Ye
+ */
+public final class TimeManager {
+
+    /**
+     * The time reserved for returning the move.
+     */
+    private static final long SAFETY_MARGIN_MILLIS = 100;
+
+    /**
+     * The expected count of moves of a player in a game,
+     * and the minimum count of moves the remaining time is kept for.
+     */
+    private static final int EXPECTED_MOVES = 30;
+    private static final int MIN_MOVES_TO_GO = 10;
+
+    /**
+     * The maximum ratio of the hard limit to the soft limit.
+     */
+    private static final int HARD_RATIO = 4;
+
+    /**
+     * The ratio of the soft limit after which no new iteration
+     * is started, as the next one takes longer than all before it.
+     */
+    private static final double ITERATION_RATIO = 0.5;
+
+    private final long maxThinkMillis;
+
+    private Game game;
+    private Side side;
+
+    private long startTime;
+    private long softMillis;
+    private long hardDeadline;
+
+    private long lastRemaining = -1;
+    private long lastThinkMillis;
+    private long overheadMillis;
+
+    private int lastBestMove;
+    private int stableIterations;
+    private double instability;
+
+    /**
+     * Creates a time manager.
+     *
+     * @param maxThinkMillis the maximum thinking time of a move.
+     */
+    public TimeManager(long maxThinkMillis) {
+        if (maxThinkMillis <= 0)
+            throw new IllegalArgumentException("maxThinkMillis <= 0");
+        this.maxThinkMillis = maxThinkMillis;
+    }
+
+    /**
+     * Resets the manager for a game.
+     *
+     * @param game the game.
+     * @param side the side of the player.
+     */
+    public void reset(Game game, Side side) {
+        this.game = game;
+        this.side = side;
+        lastRemaining = -1;
+        overheadMillis = 0;
+    }
+
+    /**
+     * Starts timing a move, computing the deadlines.
+     *
+     * @param timeoutMillis the timeout of the request, 0 for no timeout.
+     */
+    public void start(long timeoutMillis) {
+        startTime = System.nanoTime();
+        lastBestMove = -1;
+        stableIterations = 0;
+        instability = 0;
+
+        OptionalLong remaining = game == null ?
+                OptionalLong.empty() : game.gameTimeRemainingMillis(side);
+        if (remaining.isPresent()) {
+            long r = remaining.getAsLong();
+            if (lastRemaining >= 0) {
+                long overhead = lastRemaining - r - lastThinkMillis;
+                // Follows a rise at once and a fall slowly
+                overheadMillis = Math.max(overhead, overheadMillis - overheadMillis / 4);
+                overheadMillis = Math.max(0, overheadMillis);
+            }
+            lastRemaining = r;
+        }
+
+        long hard = maxThinkMillis;
+        if (timeoutMillis != 0) {
+            long reserve = SAFETY_MARGIN_MILLIS + overheadMillis;
+            hard = Math.min(hard, Math.max(timeoutMillis / 2, timeoutMillis - reserve));
+        }
+        long soft = hard;
+        if (remaining.isPresent()) {
+            int ownMoves = game.currentMoveIndex() / 2;
+            int movesToGo = Math.max(MIN_MOVES_TO_GO, EXPECTED_MOVES - ownMoves);
+            long available = remaining.getAsLong() - overheadMillis * movesToGo;
+            soft = Math.min(soft, Math.max(1, available / movesToGo));
+            hard = Math.min(hard, soft * HARD_RATIO);
+        }
+        softMillis = soft;
+        hardDeadline = startTime + hard * 1_000_000;
+    }
+
+    /**
+     * Finishes timing a move, to be called right before returning it.
+     */
+    public void finish() {
+        lastThinkMillis = (System.nanoTime() - startTime) / 1_000_000;
+    }
+
+    /**
+     * Gets the hard deadline of the current move.
+     *
+     * @return the deadline in System.nanoTime().
+     */
+    public long hardDeadline() {
+        return hardDeadline;
+    }
+
+    /**
+     * Gets the soft deadline of the current move,
+     * not counting the adjustments from the iterations.
+     *
+     * @return the deadline in System.nanoTime().
+     */
+    public long softDeadline() {
+        return Math.min(hardDeadline, startTime + softMillis * 1_000_000);
+    }
+
+    /**
+     * Gets the measured overhead of the framework per move.
+     *
+     * @return the overhead in milliseconds.
+     */
+    public long overheadMillis() {
+        return overheadMillis;
+    }
+
+    /**
+     * Reports a completed iteration of a search and tells
+     * whether another iteration should be started.
+     *
+     * @param bestMove the best move of the iteration.
+     * @return whether to continue the search.
+     */
+    public boolean iterationCompleted(int bestMove) {
+        instability /= 2;
+        if (bestMove == lastBestMove) {
+            stableIterations++;
+        } else {
+            if (lastBestMove != -1)
+                instability += 1;
+            stableIterations = 0;
+            lastBestMove = bestMove;
+        }
+        double scale = 1 + instability;
+        if (stableIterations >= 4)
+            scale /= 2; // The move dominates
+        long elapsed = System.nanoTime() - startTime;
+        return elapsed < softMillis * 1_000_000 * scale * ITERATION_RATIO &&
+                System.nanoTime() < hardDeadline;
+    }
+}
@@ -0,0 +1,221 @@
+package cn.yescallop.gomoku.ai;
+
+import java.util.Arrays;
+
+/**
+ * A fixed-size transposition table of search results,
+ * keyed by the Zobrist hash key of a board.
+ * <p>
+ * The table is a power-of-two array of buckets, each holding
+ * BUCKET_ENTRIES entries of two longs: the key XOR the data, and the data.
+ * An entry torn by concurrent writes fails the verification on probing
+ * and is taken as a miss, so the table can be shared by searching threads
+ * without locking.
+ * <p>
+ * The data of an entry is packed in a long:
+ * <pre>
+ * bits  0-15: the best move, or NO_MOVE
+ * bits 16-47: the score
+ * bits 48-55: the depth
+ * bits 56-57: the bound
+ * bits 58-63: the generation
+ * </pre>
+ * The generation is advanced once per search, so that the entries
+ * of earlier searches are replaced first when a bucket is full.
+ *
+ * @author Scallop Ye
+ */
+public final class TranspositionTable {
+
+    public static final int BOUND_UPPER = 1;
+    public static final int BOUND_LOWER = 2;
+    public static final int BOUND_EXACT = 3;
+
+    /**
+     * The move stored when there's no best move.
+     */
+    public static final int NO_MOVE = 0xffff;
+
+    public static final int MAX_DEPTH = 0xff;
+
+    private static final int BUCKET_ENTRIES = 4;
+    private static final int BUCKET_LONGS = BUCKET_ENTRIES * 2;
+    private static final int BUCKET_BYTES = BUCKET_LONGS * Long.BYTES;
+
+    private static final int SCORE_SHIFT = 16;
+    private static final int DEPTH_SHIFT = 48;
+    private static final int BOUND_SHIFT = 56;
+    private static final int GENERATION_SHIFT = 58;
+    private static final int GENERATION_MASK = 0x3f;
+
+    /**
+     * The depth lost by an entry per generation of age
+     * when choosing the entry to replace.
+     */
+    private static final int AGE_PENALTY = 8;
+
+    private final long[] table;
+    private final int bucketMask;
+    private volatile int generation;
+
+    /**
+     * Creates a table within a memory budget.
+     *
+     * @param megabytes the memory budget in megabytes.
+     */
+    public TranspositionTable(int megabytes) {
+        if (megabytes < 1)
+            throw new IllegalArgumentException("megabytes < 1");
+        long buckets = Long.highestOneBit((long) megabytes * (1 << 20) / BUCKET_BYTES);
+        buckets = Math.min(buckets, Integer.highestOneBit(Integer.MAX_VALUE / BUCKET_LONGS));
+        table = new long[(int) buckets * BUCKET_LONGS];
+        bucketMask = (int) buckets - 1;
+    }
+
+    /**
+     * Gets the capacity in entries of the table.
+     *
+     * @return the capacity.
+     */
+    public int capacity() {
+        return table.length / 2;
+    }
+
+    /**
+     * Clears all the entries.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        generation = 0;
+    }
+
+    /**
+     * Advances the generation before a new search,
+     * aging the entries stored before.
+     */
+    public void newSearch() {
+        generation = (generation + 1) & GENERATION_MASK;
+    }
+
+    /**
+     * Probes the table for an entry.
+     *
+     * @param key the hash key.
+     * @return the data of the entry, or 0 if not found.
+     */
+    public long probe(long key) {
+        long[] table = this.table;
+        int base = bucketBase(key);
+        for (int i = base, end = base + BUCKET_LONGS; i < end; i += 2) {
+            long data = table[i + 1];
+            if ((table[i] ^ data) == key && data != 0)
+                return data;
+        }
+        return 0;
+    }
+
+    /**
+     * Stores an entry in the table, replacing the entry of the same key
+     * or the entry least worth keeping in the bucket.
+     *
+     * @param key the hash key.
+     * @param move the best move, or -1 if none.
+     * @param score the score.
+     * @param depth the depth.
+     * @param bound the bound, one of BOUND_UPPER, BOUND_LOWER and BOUND_EXACT.
+     */
+    public void store(long key, int move, int score, int depth, int bound) {
+        long[] table = this.table;
+        int base = bucketBase(key);
+        int gen = generation;
+        int target = base;
+        int minWorth = Integer.MAX_VALUE;
+        for (int i = base, end = base + BUCKET_LONGS; i < end; i += 2) {
+            long data = table[i + 1];
+            if (data == 0) {
+                if (minWorth != Integer.MIN_VALUE) {
+                    target = i;
+                    minWorth = Integer.MIN_VALUE;
+                }
+                continue;
+            }
+            if ((table[i] ^ data) == key) {
+                // Keeps the old move and a deeper result of the same search
+                if (move < 0)
+                    move = moveOf(data);
+                if (bound != BOUND_EXACT && generationOf(data) == gen && depthOf(data) > depth)
+                    return;
+                target = i;
+                break;
+            }
+            int age = (gen - generationOf(data)) & GENERATION_MASK;
+            int worth = depthOf(data) - age * AGE_PENALTY;
+            if (worth < minWorth) {
+                target = i;
+                minWorth = worth;
+            }
+        }
+        long data = pack(move, score, depth, bound, gen);
+        table[target] = key ^ data;
+        table[target + 1] = data;
+    }
+
+    /**
+     * Estimates the permill of the entries used by the current search.
+     *
+     * @return the permill.
+     */
+    public int hashfull() {
+        int sample = Math.min(table.length, 1000 * 2);
+        int gen = generation;
+        int used = 0;
+        for (int i = 0; i < sample; i += 2) {
+            long data = table[i + 1];
+            if (data != 0 && generationOf(data) == gen)
+                used++;
+        }
+        return used * 1000 / (sample / 2);
+    }
+
+    private int bucketBase(long key) {
+        return ((int) (key ^ key >>> 32) & bucketMask) * BUCKET_LONGS;
+    }
+
+    private static long pack(int move, int score, int depth, int bound, int generation) {
+        if (move < 0)
+            move = NO_MOVE;
+        depth = Math.max(0, Math.min(depth, MAX_DEPTH));
+        return move
+                | (score & 0xffffffffL) << SCORE_SHIFT
+                | (long) depth << DEPTH_SHIFT
+                | (long) bound << BOUND_SHIFT
+                | (long) generation << GENERATION_SHIFT;
+    }
+
+    /**
+     * Gets the best move in the data of an entry.
+     *
+     * @param data the data.
+     * @return the move, or -1 if none.
+     */
+    public static int moveOf(long data) {
+        int move = (int) data & 0xffff;
+        return move == NO_MOVE ? -1 : move;
+    }
+
+    public static int scoreOf(long data) {
+        return (int) (data >>> SCORE_SHIFT);
+    }
+
+    public static int depthOf(long data) {
+        return (int) (data >>> DEPTH_SHIFT) & 0xff;
+    }
+
+    public static int boundOf(long data) {
+        return (int) (data >>> BOUND_SHIFT) & 0x3;
+    }
+
+    private static int generationOf(long data) {
+        return (int) (data >>> GENERATION_SHIFT) & GENERATION_MASK;
+    }
+}
@@ -0,0 +1,196 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.util.Arrays;
+
+/**
+ * A VcfSolver searches for a victory by continuous fours,
+ * in which the attacker makes a four with every move
+ * and the defender is forced to block it.
+ * <p>
+ * Moves are grid indexes y * size + x. A solved sequence
+ * alternates the moves of the attacker and the defender,
+ * and ends with the move of the attacker after which the
+ * defender can no longer prevent a five.
+ * <p>
+ * Under Renju rules, Black never makes a forbidden move, and
+ * White wins when Black is forced to block on a forbidden point.
+ * <p>
+ * The positions refuted are cached across solving, so a solver is
+ * meant to be reused for the boards of one game. A solver is not
+ * thread-safe.
+ *
+ * @author Scallop Ye
+ */
+public final class VcfSolver {
+
+    /**
+     * The interval in nodes of checking the deadline, minus one.
+     */
+    private static final int CHECK_INTERVAL = 255;
+
+    private static final int CACHE_BITS = 16;
+    private static final int CACHE_MASK = (1 << CACHE_BITS) - 1;
+
+    /**
+     * The key mixed into the hash keys when White attacks.
+     */
+    private static final long WHITE_ATTACKER_KEY = 0x9e3779b97f4a7c15L;
+
+    private final int size;
+    private final ThreatScanner scanner;
+
+    /**
+     * The hash keys of the positions refuted, direct-mapped.
+     */
+    private final long[] refuted = new long[1 << CACHE_BITS];
+
+    private final int[] sequence;
+    private int sequenceLength;
+
+    private Board board;
+    private StoneType attacker;
+    private long nodeBudget;
+    private long deadline;
+    private long nodes;
+    private boolean aborted;
+
+    /**
+     * Creates a solver.
+     *
+     * @param boardSize the size of the boards to solve.
+     * @param ruleType the type of the rule.
+     */
+    public VcfSolver(int boardSize, Rule.Type ruleType) {
+        this.size = boardSize;
+        scanner = new ThreatScanner(boardSize, ruleType);
+        sequence = new int[boardSize * boardSize];
+    }
+
+    /**
+     * Solves a board for a victory by continuous fours,
+     * with the attacker to move.
+     * <p>
+     * A detached board is searched on and restored before returning,
+     * and any other board is copied.
+     *
+     * @param board the board.
+     * @param attacker the stone type of the attacker.
+     * @param nodeBudget the maximum count of nodes to visit.
+     * @param deadline the deadline in System.nanoTime().
+     * @return the winning sequence, or null if no victory is found.
+     */
+    public int[] solve(Board board, StoneType attacker, long nodeBudget, long deadline) {
+        if (board.size() != size)
+            throw new IllegalArgumentException("Board size mismatch");
+        this.board = board.isDetached() ? board : board.copy();
+        this.attacker = attacker;
+        this.nodeBudget = nodeBudget;
+        this.deadline = deadline;
+        nodes = 0;
+        aborted = false;
+        scanner.truncate(0);
+        sequenceLength = 0;
+        try {
+            if (scanner.scanFivePoints(this.board, attacker) != 0) {
+                return new int[]{scanner.fivePoint(0)};
+            }
+            int n = scanner.scanFivePoints(this.board, attacker.opposite());
+            if (n >= 2)
+                return null;
+            if (attack(0, n == 1 ? scanner.fivePoint(0) : -1))
+                return Arrays.copyOf(sequence, sequenceLength);
+            return null;
+        } finally {
+            this.board = null;
+        }
+    }
+
+    /**
+     * Gets the count of nodes visited by the last solving.
+     *
+     * @return the count of nodes.
+     */
+    public long nodes() {
+        return nodes;
+    }
+
+    /**
+     * Tells whether the last solving was aborted by the node budget,
+     * the deadline or an interrupt, in which case no victory found
+     * does not mean there's none.
+     *
+     * @return whether the last solving was aborted.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Searches the moves of the attacker.
+     *
+     * @param ply the ply.
+     * @param forced the grid the attacker must block in, or -1 if none.
+     * @return whether the attacker wins.
+     */
+    private boolean attack(int ply, int forced) {
+        if (aborted || !checkLimits())
+            return false;
+        long key = board.hashKey() ^ (attacker == StoneType.WHITE ? WHITE_ATTACKER_KEY : 0);
+        int slot = (int) (key ^ key >>> 32) & CACHE_MASK;
+        if (refuted[slot] == key)
+            return false;
+
+        int base = scanner.top();
+        if (forced != -1) {
+            scanner.push(forced);
+        } else {
+            // Moves making a four
+            scanner.beginUnique();
+            scanner.pushWindowGrids(board, attacker, 5, false, 3);
+        }
+        StoneType defender = attacker.opposite();
+        boolean win = false;
+        for (int i = base; i < scanner.top() && !win && !aborted; i++) {
+            int move = scanner.get(i);
+            int x = move % size, y = move / size;
+            if (scanner.isForbidden(board, attacker, x, y))
+                continue;
+            board.move(x, y, attacker);
+            nodes++;
+            int n = scanner.fivePointsThrough(board, x, y, attacker);
+            if (n != 0) {
+                sequence[ply] = move;
+                int block = scanner.fivePoint(0);
+                int bx = block % size, by = block / size;
+                if (n >= 2 || scanner.isForbidden(board, defender, bx, by)) {
+                    sequenceLength = ply + 1;
+                    win = true;
+                } else {
+                    board.move(bx, by, defender);
+                    sequence[ply + 1] = block;
+                    int dn = scanner.fivePointsThrough(board, bx, by, defender);
+                    if (dn < 2)
+                        win = attack(ply + 2, dn == 1 ? scanner.fivePoint(0) : -1);
+                    board.unmove();
+                }
+            }
+            board.unmove();
+        }
+        scanner.truncate(base);
+        if (!win && !aborted)
+            refuted[slot] = key;
+        return win;
+    }
+
+    private boolean checkLimits() {
+        if (nodes >= nodeBudget ||
+                ((nodes & CHECK_INTERVAL) == 0 &&
+                        (System.nanoTime() > deadline || Thread.currentThread().isInterrupted())))
+            aborted = true;
+        return !aborted;
+    }
+}
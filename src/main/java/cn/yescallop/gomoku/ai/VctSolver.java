@@ -0,0 +1,286 @@
+package cn.yescallop.gomoku.ai;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+import cn.yescallop.gomoku.rule.Rule;
+
+import java.util.Arrays;
+
+/**
+ * A VctSolver runs a threat-space search for a victory by
+ * continuous threats, in which the attacker makes a four
+ * or an open three with every move.
+ * <p>
+ * A four must be blocked in its five point. An open three may be
+ * answered in any grid of the six-grid windows in which it would become
+ * an open four, or with a four of the defender anywhere on the board.
+ * At every position of the attacker, a {@link VcfSolver} is tried first,
+ * and the attacker wins if all the replies to one of the threats lose.
+ * <p>
+ * Moves are grid indexes y * size + x. A solved sequence alternates
+ * the moves of the attacker and the defender along one of the
+ * defensive lines, and ends with a winning sequence of fours
+ * or the threat that can no longer be defended.
+ * <p>
+ * The positions refuted within a depth are cached across solving,
+ * so a solver is meant to be reused for the boards of one game.
+ * A solver is not thread-safe.
+ *
+ * @author Scallop Ye
+ */
+public final class VctSolver {
+
+    /**
+     * The maximum depth in moves of the attacker.
+     */
+    public static final int MAX_DEPTH = 32;
+
+    /**
+     * The node budget of the VCF search at every position.
+     */
+    private static final int VCF_NODE_BUDGET = 2000;
+
+    /**
+     * The interval in nodes of checking the deadline, minus one.
+     */
+    private static final int CHECK_INTERVAL = 63;
+
+    private static final int CACHE_BITS = 16;
+    private static final int CACHE_MASK = (1 << CACHE_BITS) - 1;
+
+    /**
+     * The key mixed into the hash keys when White attacks.
+     */
+    private static final long WHITE_ATTACKER_KEY = 0x9e3779b97f4a7c15L;
+
+    private final int size;
+    private final ThreatScanner scanner;
+    private final VcfSolver vcf;
+
+    /**
+     * The hash keys of the positions refuted and the depths
+     * within which they are refuted, direct-mapped.
+     */
+    private final long[] refutedKeys = new long[1 << CACHE_BITS];
+    private final byte[] refutedDepths = new byte[1 << CACHE_BITS];
+
+    /**
+     * The winning sequences found from the plies.
+     */
+    private final int[][] lines;
+    private final int[] lineLengths;
+
+    private Board board;
+    private StoneType attacker;
+    private long deadline;
+    private long nodes;
+    private boolean aborted;
+
+    /**
+     * Creates a solver.
+     *
+     * @param boardSize the size of the boards to solve.
+     * @param ruleType the type of the rule.
+     */
+    public VctSolver(int boardSize, Rule.Type ruleType) {
+        this.size = boardSize;
+        scanner = new ThreatScanner(boardSize, ruleType);
+        vcf = new VcfSolver(boardSize, ruleType);
+        int plies = 2 * MAX_DEPTH + 2;
+        lines = new int[plies][boardSize * boardSize + plies];
+        lineLengths = new int[plies];
+    }
+
+    /**
+     * Solves a board for a victory by continuous threats,
+     * with the attacker to move.
+     * <p>
+     * A detached board is searched on and restored before returning,
+     * and any other board is copied.
+     *
+     * @param board the board.
+     * @param attacker the stone type of the attacker.
+     * @param maxDepth the maximum depth in moves of the attacker,
+     * not counting the final sequence of fours.
+     * @param deadline the deadline in System.nanoTime().
+     * @return the winning sequence, or null if no victory is found.
+     */
+    public int[] solve(Board board, StoneType attacker, int maxDepth, long deadline) {
+        if (board.size() != size)
+            throw new IllegalArgumentException("Board size mismatch");
+        if (maxDepth < 0 || maxDepth > MAX_DEPTH)
+            throw new IllegalArgumentException("maxDepth out of range: " + maxDepth);
+        this.board = board.isDetached() ? board : board.copy();
+        this.attacker = attacker;
+        this.deadline = deadline;
+        nodes = 0;
+        aborted = false;
+        scanner.truncate(0);
+        try {
+            if (attack(0, maxDepth))
+                return Arrays.copyOf(lines[0], lineLengths[0]);
+            return null;
+        } finally {
+            this.board = null;
+        }
+    }
+
+    /**
+     * Gets the count of nodes visited by the last solving,
+     * not counting the nodes of VCF searches.
+     *
+     * @return the count of nodes.
+     */
+    public long nodes() {
+        return nodes;
+    }
+
+    /**
+     * Tells whether the last solving was aborted by the deadline
+     * or an interrupt, in which case no victory found
+     * does not mean there's none.
+     *
+     * @return whether the last solving was aborted.
+     */
+    public boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * Searches the threats of the attacker.
+     *
+     * @param ply the ply.
+     * @param depth the remaining depth.
+     * @return whether the attacker wins.
+     */
+    private boolean attack(int ply, int depth) {
+        if (aborted || !checkLimits())
+            return false;
+        long key = board.hashKey() ^ (attacker == StoneType.WHITE ? WHITE_ATTACKER_KEY : 0);
+        int slot = (int) (key ^ key >>> 32) & CACHE_MASK;
+        if (refutedKeys[slot] == key && refutedDepths[slot] >= depth)
+            return false;
+
+        int[] vcfLine = vcf.solve(board, attacker, VCF_NODE_BUDGET, deadline);
+        if (vcfLine != null) {
+            System.arraycopy(vcfLine, 0, lines[ply], 0, vcfLine.length);
+            lineLengths[ply] = vcfLine.length;
+            return true;
+        }
+        if (depth == 0)
+            return refute(slot, key, depth);
+
+        StoneType defender = attacker.opposite();
+        int base = scanner.top();
+        int n = scanner.scanFivePoints(board, defender);
+        if (n >= 2)
+            return refute(slot, key, depth);
+        if (n == 1) {
+            scanner.push(scanner.fivePoint(0));
+        } else {
+            scanner.beginUnique();
+            // Moves making a four, then moves making an open three
+            scanner.pushWindowGrids(board, attacker, 5, false, 3);
+            scanner.pushWindowGrids(board, attacker, 6, true, 2);
+        }
+
+        boolean win = false;
+        for (int i = base; i < scanner.top() && !win && !aborted; i++) {
+            int move = scanner.get(i);
+            int x = move % size, y = move / size;
+            if (scanner.isForbidden(board, attacker, x, y))
+                continue;
+            board.move(x, y, attacker);
+            nodes++;
+            int replies = scanner.top();
+            if (pushReplies(x, y, n == 1)) {
+                win = defend(ply + 1, depth, replies);
+                if (win) {
+                    lines[ply][0] = move;
+                    System.arraycopy(lines[ply + 1], 0, lines[ply], 1, lineLengths[ply + 1]);
+                    lineLengths[ply] = lineLengths[ply + 1] + 1;
+                }
+            }
+            scanner.truncate(replies);
+            board.unmove();
+        }
+        scanner.truncate(base);
+        if (!win && !aborted)
+            refute(slot, key, depth);
+        return win;
+    }
+
+    private boolean refute(int slot, long key, int depth) {
+        refutedKeys[slot] = key;
+        refutedDepths[slot] = (byte) depth;
+        return false;
+    }
+
+    /**
+     * Searches the replies of the defender to a threat.
+     *
+     * @param ply the ply.
+     * @param depth the remaining depth of the attacker.
+     * @param base the index of the first reply in the stack.
+     * @return whether the attacker wins against all the replies.
+     */
+    private boolean defend(int ply, int depth, int base) {
+        StoneType defender = attacker.opposite();
+        int end = scanner.top();
+        // The threat can no longer be defended without a legal reply,
+        // such as when all the replies are forbidden
+        lineLengths[ply] = 0;
+        for (int i = base; i < end; i++) {
+            int reply = scanner.get(i);
+            int x = reply % size, y = reply / size;
+            if (scanner.isForbidden(board, defender, x, y))
+                continue;
+            board.move(x, y, defender);
+            boolean win = attack(ply + 1, depth - 1);
+            board.unmove();
+            if (!win)
+                return false;
+            lines[ply][0] = reply;
+            System.arraycopy(lines[ply + 1], 0, lines[ply], 1, lineLengths[ply + 1]);
+            lineLengths[ply] = lineLengths[ply + 1] + 1;
+        }
+        return true;
+    }
+
+    /**
+     * Pushes the replies of the defender to the threat
+     * made by the attacker in a grid.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param forced whether the move blocked a four of the defender,
+     * in which case the open threes made before count as the threat.
+     * @return whether there's a threat, or else the replies
+     * pushed are empty.
+     */
+    private boolean pushReplies(int x, int y, boolean forced) {
+        StoneType defender = attacker.opposite();
+        int n = scanner.fivePointsThrough(board, x, y, attacker);
+        if (n >= 2)
+            return true;
+        if (n == 1) {
+            int block = scanner.fivePoint(0);
+            if (!scanner.isForbidden(board, defender, block % size, block / size))
+                scanner.push(block);
+            return true;
+        }
+        scanner.beginUnique();
+        if (!scanner.pushThreeDefenses(board, attacker, forced ? -1 : x, y))
+            return false;
+        // Fours of the defender
+        scanner.pushWindowGrids(board, defender, 5, false, 3);
+        return true;
+    }
+
+    private boolean checkLimits() {
+        if ((nodes & CHECK_INTERVAL) == 0 &&
+                (System.nanoTime() > deadline || Thread.currentThread().isInterrupted()))
+            aborted = true;
+        return !aborted;
+    }
+}
@@ -26,6 +26,7 @@ public class ConsoleGameListener extends GameListenerAdapter {
         LOGGER.info("Move timeout: " + timeoutString(game.moveTimeoutMillis()));
         LOGGER.info("Strict mode: " + (game.isStrict() ? "Enabled" : "Disabled"));
         LOGGER.info("Rule: " + game.rule().name());
+        LOGGER.info("Board size: " + game.board().size());
         LOGGER.info("----- GAME STARTED -----");
     }
 
@@ -4,15 +4,26 @@ import java.io.PrintStream;
 
 /**
  * A Board consists of the Grid matrix.
+ * <p>
+ * The position is stored as bitboards: for each stone type
+ * and each of the four line directions (UP, RIGHT, UP_RIGHT
+ * and DOWN_RIGHT, i.e. direction indexes 0 to 3), every line
+ * of the board is packed into an int, one bit per grid.
+ * Moving along a line in its direction increments the bit position.
+ * Grids are only thin views over the bitboards.
+ * <p>
+ * The line and adjacency tables are computed once per board size
+ * and shared by all the boards of the size.
  *
  * @author Scallop Ye
  */
 public class Board {
 
     private final int size;
+    private final BoardTopology topology;
 
     /**
-     * The matrix of the board.
+     * The matrix of the grid views, created lazily.
      * <p>
      * Real board:
      * A2, B2
@@ -22,38 +33,104 @@ public class Board {
      */
     private final Grid[][] matrix;
 
+    /**
+     * The bitboards, indexed by stone type ordinal and line index.
+     */
+    private final int[][] lines;
+
+    /**
+     * The move indexes of the grids, indexed by y * size + x.
+     */
+    private final int[] moveIndexes;
+
+    /**
+     * The grids of the moves in order, as y * size + x.
+     * The grid of move index i is at i - 1.
+     */
+    private final int[] history;
+
     /**
      * The current move index.
      */
     private int curMoveIndex = 0;
 
+    /**
+     * The Zobrist keys of the stones on the board,
+     * the low and the high 64 bits.
+     */
+    private long stonesKey = 0;
+    private long stonesKeyHigh = 0;
+
+    /**
+     * The stone type to move next.
+     */
+    private StoneType stoneToMove = StoneType.BLACK;
+
+    /**
+     * Whether the stones are swapped in the game.
+     */
+    private boolean swapped = false;
+
+    /**
+     * Whether this board is a copy detached from any game,
+     * on which moves can be made and unmade freely.
+     */
+    private final boolean detached;
+
     /**
      * Creates a gomoku board.
      *
      * @param size the size of the board.
      */
     Board(int size) {
+        topology = BoardTopology.of(size);
         this.size = size;
         matrix = new Grid[size][size];
+        lines = new int[2][topology.lineCount];
+        moveIndexes = new int[size * size];
+        history = new int[size * size];
+        detached = false;
+    }
 
-        for (int y = 0; y < size; y++) {
-            for (int x = 0; x < size; x++) {
-                matrix[y][x] = new Grid(this, x, y);
-            }
-        }
+    /**
+     * Creates a copy of a board, without the grid views.
+     *
+     * @param board the board to be copied.
+     */
+    private Board(Board board) {
+        size = board.size;
+        topology = board.topology;
+        matrix = new Grid[size][size];
+        lines = new int[][]{board.lines[0].clone(), board.lines[1].clone()};
+        moveIndexes = board.moveIndexes.clone();
+        history = board.history.clone();
+        curMoveIndex = board.curMoveIndex;
+        stonesKey = board.stonesKey;
+        stonesKeyHigh = board.stonesKeyHigh;
+        stoneToMove = board.stoneToMove;
+        swapped = board.swapped;
+        detached = true;
+    }
 
-        // Fills the adjacent grids
-        for (Direction d : Direction.values()) {
-            int[] delta = d.delta();
-            for (int y = 0; y < size; y++) {
-                for (int x = 0; x < size; x++) {
-                    int adjX = x + delta[0];
-                    int adjY = y + delta[1];
-                    if (adjX >= 0 && adjX < size && adjY >= 0 && adjY < size)
-                        matrix[y][x].adjacentGrids[d.ordinal()] = matrix[adjY][adjX];
-                }
-            }
-        }
+    /**
+     * Creates a copy of this board holding the same stones,
+     * which is detached from any game, so that moves can be
+     * made and unmade on it by {@link #move(int, int, StoneType)}
+     * and {@link #unmove()}. Offered grids are not copied.
+     *
+     * @return the copy.
+     */
+    public Board copy() {
+        return new Board(this);
+    }
+
+    /**
+     * Tells whether this board is detached from any game.
+     *
+     * @return whether this board is detached.
+     */
+    public boolean isDetached() {
+        return detached;
     }
 
     /**
@@ -74,6 +151,70 @@ public class Board {
         return curMoveIndex;
     }
 
+    /**
+     * Gets the grid of the last move.
+     *
+     * @return the grid, or null if no move is made.
+     */
+    public Grid lastMove() {
+        return curMoveIndex == 0 ? null : moveAt(curMoveIndex);
+    }
+
+    /**
+     * Gets the grid of a move.
+     *
+     * @param index the move index, from 1 to the current move index.
+     * @return the grid.
+     */
+    public Grid moveAt(int index) {
+        if (index < 1 || index > curMoveIndex)
+            throw new IndexOutOfBoundsException("Move index: " + index);
+        int cell = history[index - 1];
+        return getGrid(cell % size, cell / size);
+    }
+
+    /**
+     * Gets the stone type to move next, which is
+     * the opposite of the last stone placed unless
+     * a player passed afterwards.
+     *
+     * @return the stone type to move.
+     */
+    public StoneType stoneToMove() {
+        return stoneToMove;
+    }
+
+    /**
+     * Gets the 64-bit Zobrist hash key of the position,
+     * covering the stones, the stone type to move
+     * and the swapped state of the game.
+     *
+     * @return the hash key.
+     */
+    public long hashKey() {
+        long key = stonesKey;
+        if (stoneToMove == StoneType.WHITE)
+            key ^= Zobrist.WHITE_TO_MOVE_KEY;
+        if (swapped)
+            key ^= Zobrist.SWAPPED_KEY;
+        return key;
+    }
+
+    /**
+     * Gets the high 64 bits of the 128-bit Zobrist hash key
+     * of the position, of which the low 64 bits are {@link #hashKey()}.
+     *
+     * @return the high 64 bits of the hash key.
+     */
+    public long hashKeyHigh() {
+        long key = stonesKeyHigh;
+        if (stoneToMove == StoneType.WHITE)
+            key ^= Zobrist.WHITE_TO_MOVE_KEY_HIGH;
+        if (swapped)
+            key ^= Zobrist.SWAPPED_KEY_HIGH;
+        return key;
+    }
+
     /**
      * Gets a grid.
      *
@@ -82,11 +223,98 @@ public class Board {
      * @return the specified Grid instance.
      */
     public Grid getGrid(int x, int y) {
-        return matrix[y][x];
+        Grid grid = matrix[y][x];
+        if (grid == null) {
+            // Grid fields are final, so a racy read sees either null or a complete grid
+            synchronized (matrix) {
+                grid = matrix[y][x];
+                if (grid == null)
+                    matrix[y][x] = grid = new Grid(this, x, y);
+            }
+        }
+        return grid;
     }
 
     public Grid getGrid(Point p) {
-        return matrix[p.y][p.x];
+        return getGrid(p.x, p.y);
+    }
+
+    /**
+     * Gets the stone type in a grid.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the stone type, or null if unoccupied.
+     */
+    public StoneType stoneAt(int x, int y) {
+        int row = size + y;
+        if ((lines[0][row] >>> x & 1) != 0)
+            return StoneType.BLACK;
+        if ((lines[1][row] >>> x & 1) != 0)
+            return StoneType.WHITE;
+        return null;
+    }
+
+    /**
+     * Tells whether a grid is unoccupied.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return whether the grid is unoccupied.
+     */
+    public boolean isEmpty(int x, int y) {
+        int row = size + y;
+        return ((lines[0][row] | lines[1][row]) >>> x & 1) == 0;
+    }
+
+    /**
+     * Gets the move index of a grid.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the move index starting from 1, or 0 if unoccupied.
+     */
+    public int moveIndexAt(int x, int y) {
+        return moveIndexes[y * size + x];
+    }
+
+    /**
+     * Gets the bits of the line through a grid in a direction,
+     * in which each set bit stands for a stone of the type.
+     * The grid itself is at the bit {@link #linePosition(int, int, int)}.
+     *
+     * @param stone the stone type.
+     * @param d the direction index, from 0 to 3.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the bits of the line.
+     */
+    public int lineBits(StoneType stone, int d, int x, int y) {
+        return lines[stone.ordinal()][topology.lineIndexes[d][y * size + x]];
+    }
+
+    /**
+     * Gets the position of a grid in the line through it in a direction.
+     *
+     * @param d the direction index, from 0 to 3.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the bit position.
+     */
+    public int linePosition(int d, int x, int y) {
+        return topology.linePositions[d][y * size + x];
+    }
+
+    /**
+     * Gets the length of the line through a grid in a direction.
+     *
+     * @param d the direction index, from 0 to 3.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the length of the line.
+     */
+    public int lineLength(int d, int x, int y) {
+        return topology.lineLengths[topology.lineIndexes[d][y * size + x]];
     }
 
     /**
@@ -100,8 +328,8 @@ public class Board {
             out.print(y + 1);
             for (int x = 0; x < size; x++) {
                 Grid g = matrix[y][x];
-                StoneType stone = g.stone;
-                if (g.offered) {
+                StoneType stone = stoneAt(x, y);
+                if (g != null && g.offered) {
                     out.print("  *");
                 } else {
                     out.print(stone == null ? "  -" : (stone == StoneType.BLACK ? "  X" : "  0"));
@@ -124,36 +352,90 @@ public class Board {
      * @param stone the stone type.
      */
     void move(Grid grid, StoneType stone) {
-        grid.stone = stone;
-        grid.moveIndex = ++curMoveIndex;
+        place(grid.x, grid.y, stone);
     }
 
     /**
-     * A Grid holds its coordinate,
-     * stone type, move index and the adjacent grid instances.
+     * Makes a move on a detached board.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param stone the stone type.
+     * @throws IllegalStateException if the board is not detached.
      */
-    public static class Grid {
+    public void move(int x, int y, StoneType stone) {
+        checkDetached();
+        place(x, y, stone);
+    }
 
-        private final Board board;
-        private final int x, y;
+    private void place(int x, int y, StoneType stone) {
+        int cell = y * size + x;
+        int[] stoneLines = lines[stone.ordinal()];
+        for (int d = 0; d < 4; d++) {
+            stoneLines[topology.lineIndexes[d][cell]] |= 1 << topology.linePositions[d][cell];
+        }
+        history[curMoveIndex] = cell;
+        moveIndexes[cell] = ++curMoveIndex;
+        stonesKey ^= Zobrist.key(stone, x, y);
+        stonesKeyHigh ^= Zobrist.keyHigh(stone, x, y);
+        stoneToMove = stone.opposite();
+    }
 
-        /**
-         * An array holding the adjacent grid instances,
-         * which is initialized in the constructor and should never be modified.
-         * <p>
-         * The mapping from indexes to directions can be found in the enum Direction.
-         */
-        private final Grid[] adjacentGrids = new Grid[8];
+    /**
+     * Unmakes the last move on a detached board, restoring
+     * the stone type to move to the stone removed.
+     *
+     * @throws IllegalStateException if the board is not detached
+     * or no move is made.
+     */
+    public void unmove() {
+        checkDetached();
+        if (curMoveIndex == 0)
+            throw new IllegalStateException("No move to unmake");
+        int cell = history[--curMoveIndex];
+        int x = cell % size, y = cell / size;
+        StoneType stone = stoneAt(x, y);
+        int[] stoneLines = lines[stone.ordinal()];
+        for (int d = 0; d < 4; d++) {
+            stoneLines[topology.lineIndexes[d][cell]] &= ~(1 << topology.linePositions[d][cell]);
+        }
+        moveIndexes[cell] = 0;
+        stonesKey ^= Zobrist.key(stone, x, y);
+        stonesKeyHigh ^= Zobrist.keyHigh(stone, x, y);
+        stoneToMove = stone;
+    }
 
-        /**
-         * The stone type of this grid, or null if unoccupied.
-         */
-        private StoneType stone = null;
+    private void checkDetached() {
+        if (!detached)
+            throw new IllegalStateException("Board not detached");
+    }
 
-        /**
-         * The move index of this grid starting from 1, or 0 if unoccupied.
-         */
-        private int moveIndex = 0;
+    /**
+     * Sets the stone type to move next.
+     *
+     * @param stone the stone type.
+     */
+    void setStoneToMove(StoneType stone) {
+        stoneToMove = stone;
+    }
+
+    /**
+     * Sets whether the stones are swapped in the game.
+     *
+     * @param swapped whether the stones are swapped.
+     */
+    void setSwapped(boolean swapped) {
+        this.swapped = swapped;
+    }
+
+    /**
+     * A Grid is a view of a grid on the board,
+     * holding its coordinate.
+     */
+    public static class Grid {
+
+        private final Board board;
+        private final int x, y;
 
         /**
          * Whether this grid is offered as part of multiple moves.
@@ -183,11 +465,11 @@ public class Board {
         }
 
         public StoneType stone() {
-            return stone;
+            return board.stoneAt(x, y);
         }
 
         public boolean isEmpty() {
-            return stone == null;
+            return board.isEmpty(x, y);
         }
 
         public boolean isOffered() {
@@ -195,21 +477,31 @@ public class Board {
         }
 
         public int moveIndex() {
-            return moveIndex;
+            return board.moveIndexAt(x, y);
         }
 
+        /**
+         * Gets the adjacent grid.
+         * <p>
+         * The mapping from indexes to directions can be found in the enum Direction.
+         *
+         * @param index the direction index.
+         * @return the adjacent grid, or null if out of the board.
+         */
         public Grid adjacent(int index) {
-            return adjacentGrids[index];
+            return adjacent(index, 1);
         }
 
         public Grid adjacent(int index, int steps) {
-            Grid grid = this;
+            int size = board.size;
+            int[] adjacentGrids = board.topology.adjacentGrids[index];
+            int cell = y * size + x;
             for (int i = 0; i < steps; i++) {
-                grid = grid.adjacentGrids[index];
-                if (grid == null)
+                cell = adjacentGrids[cell];
+                if (cell == -1)
                     return null;
             }
-            return grid;
+            return board.getGrid(cell % size, cell / size);
         }
 
         @Override
@@ -219,7 +511,7 @@ public class Board {
 
         @Override
         public String toString() {
-            return "Grid{" + pointString() + ", " + stone + "}";
+            return "Grid{" + pointString() + ", " + stone() + "}";
         }
 
         public String pointString() {
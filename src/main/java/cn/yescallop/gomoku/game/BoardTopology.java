@@ -0,0 +1,114 @@
+package cn.yescallop.gomoku.game;
+
+/**
+ * A BoardTopology holds the precomputed tables of
+ * a board size, shared by all the boards of the size.
+ * <p>
+ * Grids are indexed by y * size + x. The lines of the four
+ * line directions (direction indexes 0 to 3) are numbered
+ * in one sequence: the columns, the rows, the diagonals
+ * and then the anti-diagonals.
+ *
+ * @author Scallop Ye
+ */
+final class BoardTopology {
+
+    /**
+     * The supported board sizes.
+     */
+    private static final int[] SUPPORTED_SIZES = {15, 19, 20};
+
+    private static final BoardTopology[] TOPOLOGIES = new BoardTopology[21];
+
+    static {
+        for (int size : SUPPORTED_SIZES) {
+            TOPOLOGIES[size] = new BoardTopology(size);
+        }
+    }
+
+    final int size;
+
+    /**
+     * The count of the lines in all the four directions.
+     */
+    final int lineCount;
+
+    /**
+     * The line indexes, indexed by direction index and grid index.
+     */
+    final int[][] lineIndexes = new int[4][];
+
+    /**
+     * The bit positions of the grids in the lines,
+     * indexed by direction index and grid index.
+     */
+    final int[][] linePositions = new int[4][];
+
+    /**
+     * The lengths of the lines, indexed by line index.
+     */
+    final int[] lineLengths;
+
+    /**
+     * The indexes of the adjacent grids, or -1 if out of the board,
+     * indexed by direction index and grid index.
+     */
+    final int[][] adjacentGrids = new int[8][];
+
+    private BoardTopology(int size) {
+        this.size = size;
+        lineCount = 6 * size - 2;
+        lineLengths = new int[lineCount];
+
+        int cells = size * size;
+        for (int d = 0; d < 4; d++) {
+            lineIndexes[d] = new int[cells];
+            linePositions[d] = new int[cells];
+        }
+        int diagonalOffset = 2 * size;
+        int antiDiagonalOffset = 4 * size - 1;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                int i = y * size + x;
+                lineIndexes[0][i] = x;
+                linePositions[0][i] = y;
+                lineIndexes[1][i] = size + y;
+                linePositions[1][i] = x;
+                lineIndexes[2][i] = diagonalOffset + x - y + size - 1;
+                linePositions[2][i] = Math.min(x, y);
+                lineIndexes[3][i] = antiDiagonalOffset + x + y;
+                linePositions[3][i] = x - Math.max(0, x + y - size + 1);
+                for (int d = 0; d < 4; d++) {
+                    lineLengths[lineIndexes[d][i]]++;
+                }
+            }
+        }
+
+        for (Direction d : Direction.values()) {
+            int[] delta = d.delta();
+            int[] adjacent = adjacentGrids[d.ordinal()] = new int[cells];
+            for (int y = 0; y < size; y++) {
+                for (int x = 0; x < size; x++) {
+                    int adjX = x + delta[0];
+                    int adjY = y + delta[1];
+                    adjacent[y * size + x] = adjX >= 0 && adjX < size && adjY >= 0 && adjY < size ?
+                            adjY * size + adjX : -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the topology of a board size.
+     *
+     * @param size the board size.
+     * @return the topology.
+     * @throws IllegalArgumentException if the size is not supported.
+     */
+    static BoardTopology of(int size) {
+        BoardTopology topology = size >= 0 && size < TOPOLOGIES.length ? TOPOLOGIES[size] : null;
+        if (topology == null)
+            throw new IllegalArgumentException("Unsupported board size: " + size);
+        return topology;
+    }
+}
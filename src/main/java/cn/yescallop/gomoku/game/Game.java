@@ -2,6 +2,7 @@ package cn.yescallop.gomoku.game;
 
 import cn.yescallop.gomoku.event.GameListener;
 import cn.yescallop.gomoku.player.Player;
+import cn.yescallop.gomoku.rule.ForbiddenPointMap;
 import cn.yescallop.gomoku.rule.Rule;
 
 import java.util.OptionalLong;
@@ -76,6 +77,14 @@ public interface Game {
      */
     Board board();
 
+    /**
+     * Gets the map of the grids forbidden for Black,
+     * which is updated after each move.
+     *
+     * @return the map, or null if the rule is not a Renju rule.
+     */
+    ForbiddenPointMap forbiddenPointMap();
+
     /**
      * Gets the game timeout.
      *
@@ -177,6 +186,15 @@ public interface Game {
          */
         Builder player(Side side, Player player);
 
+        /**
+         * Sets the size of the board, 15 by default.
+         * Supported sizes are 15, 19 and 20.
+         *
+         * @param size the board size.
+         * @return this builder.
+         */
+        Builder boardSize(int size);
+
         /**
          * Sets the game timeout.
          *
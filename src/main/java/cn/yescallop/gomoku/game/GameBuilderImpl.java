@@ -14,6 +14,7 @@ class GameBuilderImpl implements Game.Builder {
     Rule rule;
     final ListenerGroup listenerGroup = new ListenerGroup();
     final Player[] players = new Player[2];
+    int boardSize = 15;
     long gameTimeout = 0;
     long moveTimeout = 0;
     boolean strict = false;
@@ -36,6 +37,13 @@ class GameBuilderImpl implements Game.Builder {
         return this;
     }
 
+    @Override
+    public GameBuilderImpl boardSize(int size) {
+        BoardTopology.of(size); // validates the size
+        this.boardSize = size;
+        return this;
+    }
+
     @Override
     public GameBuilderImpl gameTimeout(long timeout, TimeUnit unit) {
         if (timeout < 0)
@@ -1,6 +1,7 @@
 package cn.yescallop.gomoku.game;
 
 import cn.yescallop.gomoku.player.Player;
+import cn.yescallop.gomoku.rule.ForbiddenPointMap;
 import cn.yescallop.gomoku.rule.Opening;
 import cn.yescallop.gomoku.rule.Rule;
 
@@ -17,6 +18,7 @@ import java.util.concurrent.Executors;
 class GameImpl implements Game {
 
     private final Board board;
+    private final ForbiddenPointMap forbiddenPointMap;
     private final Rule rule;
     private final Player[] players;
     private final boolean strict;
@@ -62,7 +64,9 @@ class GameImpl implements Game {
         listenerGroup.add(players[0]);
         listenerGroup.add(players[1]);
 
-        board = new Board(15);
+        board = new Board(builder.boardSize);
+        forbiddenPointMap = rule.type() == Rule.Type.STANDARD_RENJU ?
+                new ForbiddenPointMap(board) : null;
     }
 
     @Override
@@ -111,6 +115,11 @@ class GameImpl implements Game {
         return board;
     }
 
+    @Override
+    public ForbiddenPointMap forbiddenPointMap() {
+        return forbiddenPointMap;
+    }
+
     @Override
     public OptionalLong gameTimeoutMillis() {
         return gameTimeout == 0 ? OptionalLong.empty() : OptionalLong.of(gameTimeout);
@@ -188,6 +197,7 @@ class GameImpl implements Game {
 
     void switchStoneType() {
         currentStoneType = currentStoneType.opposite();
+        board.setStoneToMove(currentStoneType);
     }
 
     // Non-static inner class implementations
@@ -205,11 +215,17 @@ class GameImpl implements Game {
         }
 
         void makeMove(Board.Grid grid) {
-            board.move(grid, currentStoneType);
+            moveOnBoard(grid);
             listenerGroup.moveMade(Move.of(grid), currentSide());
             switchStoneType();
         }
 
+        private void moveOnBoard(Board.Grid grid) {
+            board.move(grid, currentStoneType);
+            if (forbiddenPointMap != null)
+                forbiddenPointMap.update(grid.x(), grid.y());
+        }
+
         void cacheMove(Move move, Board.Grid grid) {
             this.move = move;
             this.grid = grid;
@@ -228,12 +244,13 @@ class GameImpl implements Game {
         @Override
         public void swap() {
             swapped = !swapped;
+            board.setSwapped(swapped);
             listenerGroup.stoneSwapped();
         }
 
         @Override
         public void makeMove() {
-            board.move(grid, currentStoneType);
+            moveOnBoard(grid);
             listenerGroup.moveMade(move, currentSide());
             switchStoneType();
             move = null;
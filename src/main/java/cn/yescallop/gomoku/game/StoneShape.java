@@ -17,6 +17,35 @@ public enum StoneShape {
     OPEN_TWO,
     SEMI_OPEN_TWO;
 
+    /**
+     * The width in bits of a shape count in packed shape counts.
+     * <p>
+     * Packed shape counts are a long holding the count of
+     * every shape, ordered by the ordinal of the shape.
+     */
+    private static final int COUNT_BITS = 5;
+    private static final long COUNT_MASK = (1 << COUNT_BITS) - 1;
+
+    /**
+     * Gets the count of this shape in packed shape counts.
+     *
+     * @param counts the packed shape counts.
+     * @return the count.
+     */
+    public int countIn(long counts) {
+        return (int) (counts >>> (ordinal() * COUNT_BITS) & COUNT_MASK);
+    }
+
+    /**
+     * Adds one to the count of this shape in packed shape counts.
+     *
+     * @param counts the packed shape counts.
+     * @return the new packed shape counts.
+     */
+    public long addTo(long counts) {
+        return counts + (1L << (ordinal() * COUNT_BITS));
+    }
+
     public static StoneShape ofLength(int len, boolean open) {
         switch (len) {
             case 2:
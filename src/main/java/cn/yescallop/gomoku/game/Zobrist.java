@@ -0,0 +1,82 @@
+package cn.yescallop.gomoku.game;
+
+import java.util.SplittableRandom;
+
+/**
+ * Zobrist keys of the board features.
+ * <p>
+ * The keys are generated from a fixed seed, so that
+ * hash keys stay the same across runs and can be stored.
+ * Each feature has two keys, the low and the high 64 bits
+ * of a 128-bit key.
+ *
+ * @author Scallop Ye
+ */
+public final class Zobrist {
+
+    /**
+     * The maximum board size supported by the keys.
+     */
+    static final int MAX_SIZE = 32;
+
+    private static final long SEED = 0x5CA110B60B0C0DE5L;
+
+    /**
+     * The keys of the stones, indexed by
+     * (stone type ordinal * MAX_SIZE + y) * MAX_SIZE + x.
+     */
+    private static final long[] STONE_KEYS = new long[2 * MAX_SIZE * MAX_SIZE];
+    private static final long[] STONE_KEYS_HIGH = new long[2 * MAX_SIZE * MAX_SIZE];
+
+    /**
+     * The keys of White to move.
+     */
+    static final long WHITE_TO_MOVE_KEY;
+    static final long WHITE_TO_MOVE_KEY_HIGH;
+
+    /**
+     * The keys of the swapped state.
+     */
+    static final long SWAPPED_KEY;
+    static final long SWAPPED_KEY_HIGH;
+
+    static {
+        SplittableRandom random = new SplittableRandom(SEED);
+        for (int i = 0; i < STONE_KEYS.length; i++) {
+            STONE_KEYS[i] = random.nextLong();
+            STONE_KEYS_HIGH[i] = random.nextLong();
+        }
+        WHITE_TO_MOVE_KEY = random.nextLong();
+        WHITE_TO_MOVE_KEY_HIGH = random.nextLong();
+        SWAPPED_KEY = random.nextLong();
+        SWAPPED_KEY_HIGH = random.nextLong();
+    }
+
+    private Zobrist() {
+        // no instance
+    }
+
+    /**
+     * Gets the key of a stone in a grid.
+     *
+     * @param stone the stone type.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the low 64 bits of the key.
+     */
+    public static long key(StoneType stone, int x, int y) {
+        return STONE_KEYS[(stone.ordinal() * MAX_SIZE + y) * MAX_SIZE + x];
+    }
+
+    /**
+     * Gets the high 64 bits of the key of a stone in a grid.
+     *
+     * @param stone the stone type.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the high 64 bits of the key.
+     */
+    public static long keyHigh(StoneType stone, int x, int y) {
+        return STONE_KEYS_HIGH[(stone.ordinal() * MAX_SIZE + y) * MAX_SIZE + x];
+    }
+}
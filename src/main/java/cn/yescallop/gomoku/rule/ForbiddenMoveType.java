@@ -0,0 +1,20 @@
+package cn.yescallop.gomoku.rule;
+
+/**
+ * The type of a move of Black under Renju rules.
+ *
+ * @author Scallop Ye
+ */
+public enum ForbiddenMoveType {
+
+    LEGAL, OVERLINE, DOUBLE_FOUR, DOUBLE_THREE;
+
+    /**
+     * Tells whether this type of move is forbidden.
+     *
+     * @return whether it is forbidden.
+     */
+    public boolean isForbidden() {
+        return this != LEGAL;
+    }
+}
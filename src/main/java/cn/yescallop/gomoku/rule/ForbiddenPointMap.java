@@ -0,0 +1,231 @@
+package cn.yescallop.gomoku.rule;
+
+import cn.yescallop.gomoku.game.Board;
+import cn.yescallop.gomoku.game.StoneType;
+
+import java.util.Arrays;
+
+/**
+ * A ForbiddenPointMap holds the empty grids of a board
+ * which are forbidden for Black under Renju rules.
+ * <p>
+ * After a stone is placed or removed, only the empty grids
+ * within reach of the lines through the stone are checked again,
+ * along with the grids whose last check depended on the forbidden
+ * moves in other grids, which are the only ones that may change.
+ * When a search makes and unmakes moves on a detached board,
+ * {@link #push(int, int)} and {@link #pop()} save and restore
+ * the map instead, so that unmaking a move checks no grid.
+ * <p>
+ * A map is not thread-safe, and should be updated by
+ * the thread changing the board.
+ *
+ * @author Scallop Ye
+ */
+public class ForbiddenPointMap {
+
+    /**
+     * The maximum distance along a line from a grid
+     * to the stones which its shapes depend on,
+     * unless the forbidden moves in other grids are checked.
+     */
+    private static final int REACH = 6;
+
+    /**
+     * The distance along a line from a grid to the stones
+     * of the threes, fours and overlines made in it.
+     */
+    private static final int SHAPE_RADIUS = 4;
+    private static final long WINDOW_MASK = (1L << (2 * SHAPE_RADIUS + 1)) - 1;
+
+    private static final int[] DELTA_X = {0, 1, 1, 1};
+    private static final int[] DELTA_Y = {1, 0, 1, -1};
+
+    private final Board board;
+    private final int size;
+
+    /**
+     * The bitset of the forbidden grids, indexed by y * size + x.
+     */
+    private final long[] forbidden;
+
+    /**
+     * The bitset of the grids whose last check depended on
+     * the forbidden moves in other grids.
+     */
+    private final long[] recursive;
+
+    private int count = 0;
+
+    /**
+     * The saved states of {@link #push(int, int)}, each being
+     * the forbidden and recursive bitsets followed by the count.
+     */
+    private long[] saved = new long[0];
+    private int savedTop = 0;
+
+    /**
+     * Creates a map of a board, checking all the empty grids.
+     *
+     * @param board the board.
+     */
+    public ForbiddenPointMap(Board board) {
+        this.board = board;
+        size = board.size();
+        int words = (size * size + 63) >>> 6;
+        forbidden = new long[words];
+        recursive = new long[words];
+        refresh();
+    }
+
+    /**
+     * Gets the board of this map.
+     *
+     * @return the board.
+     */
+    public Board board() {
+        return board;
+    }
+
+    /**
+     * Tells whether a grid is forbidden for Black.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return whether the grid is forbidden.
+     */
+    public boolean isForbidden(int x, int y) {
+        int i = y * size + x;
+        return (forbidden[i >>> 6] & 1L << i) != 0;
+    }
+
+    /**
+     * Tells whether a grid is forbidden for Black.
+     *
+     * @param grid the grid.
+     * @return whether the grid is forbidden.
+     */
+    public boolean isForbidden(Board.Grid grid) {
+        return isForbidden(grid.x(), grid.y());
+    }
+
+    /**
+     * Gets the count of the forbidden grids.
+     *
+     * @return the count.
+     */
+    public int count() {
+        return count;
+    }
+
+    /**
+     * Checks all the empty grids again.
+     */
+    public void refresh() {
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                check(x, y);
+            }
+        }
+    }
+
+    /**
+     * Updates the map after a stone is placed in
+     * or removed from a grid.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     */
+    public void update(int x, int y) {
+        check(x, y);
+        for (int d = 0; d < 4; d++) {
+            for (int k = -REACH; k <= REACH; k++) {
+                int cx = x + DELTA_X[d] * k;
+                int cy = y + DELTA_Y[d] * k;
+                if (k != 0 && cx >= 0 && cx < size && cy >= 0 && cy < size)
+                    check(cx, cy);
+            }
+        }
+        for (int w = 0; w < recursive.length; w++) {
+            for (long bits = recursive[w]; bits != 0; bits &= bits - 1) {
+                int i = w << 6 | Long.numberOfTrailingZeros(bits);
+                check(i % size, i / size);
+            }
+        }
+    }
+
+    /**
+     * Saves the map and updates it after a stone is placed in a grid.
+     *
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     */
+    public void push(int x, int y) {
+        int words = forbidden.length;
+        int frame = words * 2 + 1;
+        if (savedTop + frame > saved.length)
+            saved = Arrays.copyOf(saved, Math.max(saved.length * 2, frame * 16));
+        System.arraycopy(forbidden, 0, saved, savedTop, words);
+        System.arraycopy(recursive, 0, saved, savedTop + words, words);
+        saved[savedTop + words * 2] = count;
+        savedTop += frame;
+        update(x, y);
+    }
+
+    /**
+     * Restores the map saved by the last {@link #push(int, int)},
+     * after the stone is removed.
+     */
+    public void pop() {
+        int words = forbidden.length;
+        int frame = words * 2 + 1;
+        if (savedTop < frame)
+            throw new IllegalStateException("No saved map");
+        savedTop -= frame;
+        System.arraycopy(saved, savedTop, forbidden, 0, words);
+        System.arraycopy(saved, savedTop + words, recursive, 0, words);
+        count = (int) saved[savedTop + words * 2];
+    }
+
+    private void check(int x, int y) {
+        int i = y * size + x;
+        boolean isForbidden = false;
+        boolean isRecursive = false;
+        if (board.isEmpty(x, y) && mayBeForbidden(x, y)) {
+            long shapes = RuleHelper.countShapesWithFlag(board, x, y);
+            isForbidden = RuleHelper.checkForbiddenMove(shapes);
+            isRecursive = (shapes & RuleHelper.RECURSIVELY_CHECKED) != 0;
+        }
+        long bit = 1L << i;
+        if (isForbidden != ((forbidden[i >>> 6] & bit) != 0)) {
+            forbidden[i >>> 6] ^= bit;
+            count += isForbidden ? 1 : -1;
+        }
+        if (isRecursive) {
+            recursive[i >>> 6] |= bit;
+        } else {
+            recursive[i >>> 6] &= ~bit;
+        }
+    }
+
+    /**
+     * Tells by the Black stones near a grid in the lines through it
+     * whether it may be forbidden, which needs two lines with two
+     * stones each for a double three or four, or one line with four
+     * stones for a double four in the line or an overline.
+     * Otherwise, the grid is never forbidden, whatever the grids
+     * farther away are, so it's not checked.
+     */
+    private boolean mayBeForbidden(int x, int y) {
+        int lines = 0;
+        for (int d = 0; d < 4; d++) {
+            long bits = (long) board.lineBits(StoneType.BLACK, d, x, y) << SHAPE_RADIUS;
+            int count = Long.bitCount(bits >>> board.linePosition(d, x, y) & WINDOW_MASK);
+            if (count >= 4)
+                return true;
+            if (count >= 2)
+                lines++;
+        }
+        return lines >= 2;
+    }
+}
@@ -34,4 +34,16 @@ public interface Opening {
      */
     void processChoice(Game.Controller controller, int index, int choice, Side side);
 
+    /**
+     * Tells whether a move is allowed by the area limits of the opening,
+     * for players to generate legal moves. No move is allowed unless
+     * {@link #processMove} accepts it, and the default allows all moves.
+     *
+     * @param index the move index.
+     * @param distToCenter the Chebyshev distance from the grid to the center.
+     * @return whether the move is allowed.
+     */
+    default boolean allowsMove(int index, int distToCenter) {
+        return true;
+    }
 }
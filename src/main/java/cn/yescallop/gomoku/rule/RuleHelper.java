@@ -5,6 +5,8 @@ import cn.yescallop.gomoku.game.*;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.StringJoiner;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import static cn.yescallop.gomoku.game.StoneShape.*;
 
@@ -14,9 +16,41 @@ import static cn.yescallop.gomoku.game.StoneShape.*;
 public final class RuleHelper {
 
     /**
-     * The maximum check depth of the forbidden moves.
+     * The search context of each thread.
      */
-    private static final int FORBIDDEN_MOVE_MAX_CHECK_DEPTH = 5;
+    private static final ThreadLocal<SearchContext> SEARCH_CONTEXT =
+            ThreadLocal.withInitial(SearchContext::new);
+
+    /**
+     * The flag set in packed shape counts by the internal search
+     * if the forbidden moves in other grids are checked, in which case
+     * the shapes may depend on grids far away from the grid.
+     */
+    static final long RECURSIVELY_CHECKED = 1L << 63;
+
+    /**
+     * The minimum count of empty grids for
+     * the bulk classification to run in parallel.
+     */
+    private static final int PARALLEL_CLASSIFY_THRESHOLD = 64;
+
+    /**
+     * The maximum count of rows classified by a single task.
+     */
+    private static final int CLASSIFY_TASK_ROWS = 2;
+
+    /**
+     * The x and y deltas of the directions, indexed by direction index.
+     */
+    private static final int[] DELTA_X = new int[8];
+    private static final int[] DELTA_Y = new int[8];
+
+    static {
+        for (Direction d : Direction.values()) {
+            DELTA_X[d.ordinal()] = d.delta()[0];
+            DELTA_Y[d.ordinal()] = d.delta()[1];
+        }
+    }
 
     private RuleHelper() {
         // no instance
@@ -56,8 +90,8 @@ public final class RuleHelper {
                         controller.end(Result.Type.ROW_COMPLETED, side);
                     }
                 } else if (controller.game().isStrict()) {
-                    List<StoneShape> shapes = RuleHelper.searchShapes(grid);
-                    if (shapes.contains(StoneShape.FIVE)) {
+                    long shapes = RuleHelper.countShapes(grid);
+                    if (FIVE.countIn(shapes) != 0) {
                         controller.end(Result.Type.ROW_COMPLETED, side);
                         return;
                     }
@@ -77,7 +111,7 @@ public final class RuleHelper {
         if (game.rule().type() != Rule.Type.STANDARD_RENJU || game.isStrict())
             return false;
         if (grid.moveIndex() == game.currentMoveIndex()) {
-            List<StoneShape> shapes = RuleHelper.searchShapes(grid);
+            long shapes = RuleHelper.countShapes(grid);
             String description = RuleHelper.describeForbiddenMove(shapes);
             if (description != null) {
                 controller.end(Result.Type.FORBIDDEN_MOVE_MADE, game.sideByStoneType(StoneType.WHITE), description);
@@ -116,25 +150,14 @@ public final class RuleHelper {
      * @return the length.
      */
     private static int rowLen(Board.Grid grid, int d) {
-        StoneType stone = grid.stone();
-        int res = 1;
-        Board.Grid gFwd = grid;
-        Board.Grid gBwd = grid;
-        int dr = Direction.reverse(d);
-
-        while (true) {
-            gFwd = gFwd.adjacent(d);
-            if (gFwd != null && gFwd.stone() == stone)
-                res++;
-            else break;
-        }
-        while (true) {
-            gBwd = gBwd.adjacent(dr);
-            if (gBwd != null && gBwd.stone() == stone)
-                res++;
-            else break;
-        }
-        return res;
+        Board board = grid.board();
+        int x = grid.x(), y = grid.y();
+        int bits = board.lineBits(grid.stone(), d, x, y);
+        int pos = board.linePosition(d, x, y);
+        // Counts the consecutive set bits on both sides, including the grid itself
+        int fwd = Integer.numberOfTrailingZeros(~(bits >>> pos));
+        int bwd = Integer.numberOfLeadingZeros(~(bits << (31 - pos)));
+        return fwd + bwd - 1;
     }
 
     /**
@@ -215,6 +238,90 @@ public final class RuleHelper {
         return openThrees >= 2 || fours >= 2;
     }
 
+    /**
+     * Describes the forbidden move contained in packed shape counts.
+     *
+     * @param shapes the packed shape counts.
+     * @return a String describing the forbidden move if
+     * there is a forbidden move, or else null.
+     */
+    public static String describeForbiddenMove(long shapes) {
+        if (FIVE.countIn(shapes) != 0)
+            return null;
+        if (OVERLINE.countIn(shapes) != 0)
+            return "Overline";
+        int openThrees = OPEN_THREE.countIn(shapes);
+        int fours = FOUR.countIn(shapes);
+        if (openThrees >= 2 || fours >= 2) {
+            StringJoiner sj = new StringJoiner("-");
+            for (int i = 0; i < fours; i++) {
+                sj.add("4");
+            }
+            for (int i = 0; i < openThrees; i++) {
+                sj.add("3");
+            }
+            return sj + " Forbidden Move";
+        }
+        return null;
+    }
+
+    /**
+     * Checks whether a forbidden move is
+     * contained in packed shape counts.
+     *
+     * @param shapes the packed shape counts.
+     * @return whether there's a forbidden move.
+     */
+    public static boolean checkForbiddenMove(long shapes) {
+        if (FIVE.countIn(shapes) != 0)
+            return false;
+        return OVERLINE.countIn(shapes) != 0 ||
+                OPEN_THREE.countIn(shapes) >= 2 || FOUR.countIn(shapes) >= 2;
+    }
+
+    /**
+     * Classifies the forbidden move contained in packed shape counts.
+     *
+     * @param shapes the packed shape counts.
+     * @return the type of the move.
+     */
+    public static ForbiddenMoveType classifyForbiddenMove(long shapes) {
+        if (FIVE.countIn(shapes) != 0)
+            return ForbiddenMoveType.LEGAL;
+        if (OVERLINE.countIn(shapes) != 0)
+            return ForbiddenMoveType.OVERLINE;
+        if (FOUR.countIn(shapes) >= 2)
+            return ForbiddenMoveType.DOUBLE_FOUR;
+        if (OPEN_THREE.countIn(shapes) >= 2)
+            return ForbiddenMoveType.DOUBLE_THREE;
+        return ForbiddenMoveType.LEGAL;
+    }
+
+    /**
+     * Classifies the moves of Black in all the empty grids of a board.
+     * <p>
+     * The rows of the board are split across the common ForkJoinPool
+     * when there are enough empty grids and the pool is parallel,
+     * or else classified sequentially. The board must not be
+     * modified until this method returns.
+     *
+     * @param board the board.
+     * @return the matrix of the types, indexed by y and x as in the board,
+     * in which occupied grids are null.
+     */
+    public static ForbiddenMoveType[][] classifyEmptyGrids(Board board) {
+        int size = board.size();
+        ForbiddenMoveType[][] res = new ForbiddenMoveType[size][size];
+        ClassifyTask task = new ClassifyTask(board, res, 0, size);
+        if (size * size - board.currentMoveIndex() < PARALLEL_CLASSIFY_THRESHOLD ||
+                ForkJoinPool.getCommonPoolParallelism() <= 1) {
+            task.compute();
+        } else {
+            ForkJoinPool.commonPool().invoke(task);
+        }
+        return res;
+    }
+
     /**
      * Searches shapes containing the specified grid.
      *
@@ -222,98 +329,163 @@ public final class RuleHelper {
      * @return a list of shapes.
      */
     public static List<StoneShape> searchShapes(Board.Grid grid) {
-        return searchShapes(grid, null);
+        long shapes = countShapes(grid);
+        List<StoneShape> res = new LinkedList<>();
+        for (StoneShape s : StoneShape.values()) {
+            for (int i = s.countIn(shapes); i > 0; i--) {
+                res.add(s);
+            }
+        }
+        return res;
     }
 
     /**
-     * Searches shapes containing the specified grid.
+     * Counts Black's shapes containing the specified grid.
      *
      * @param grid the grid.
-     * @param checked the last node of checked grids.
-     * @return a list of shapes.
+     * @return the packed shape counts.
      */
-    private static List<StoneShape> searchShapes(Board.Grid grid, GridNode checked) {
-        if (grid.isEmpty()) {
-            checked = checked == null ? new GridNode(grid, null) : checked.next(grid);
-        }
+    public static long countShapes(Board.Grid grid) {
+        return countShapes(grid.board(), grid.x(), grid.y());
+    }
 
-        List<StoneShape> res = new LinkedList<>();
+    /**
+     * Counts Black's shapes containing the specified grid.
+     *
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the packed shape counts.
+     */
+    public static long countShapes(Board board, int x, int y) {
+        return countShapesWithFlag(board, x, y) & ~RECURSIVELY_CHECKED;
+    }
+
+    /**
+     * Counts Black's shapes containing the specified grid,
+     * keeping the flag {@link #RECURSIVELY_CHECKED}.
+     *
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @return the packed shape counts with the flag.
+     */
+    static long countShapesWithFlag(Board board, int x, int y) {
+        SearchContext context = SEARCH_CONTEXT.get();
+        context.reset(board.size());
+        return countShapes(board, x, y, context);
+    }
+
+    /**
+     * Counts Black's shapes containing the specified grid.
+     *
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param context the search context.
+     * @return the packed shape counts, with {@link #RECURSIVELY_CHECKED}
+     * set if the forbidden moves in other grids are checked.
+     */
+    private static long countShapes(Board board, int x, int y, SearchContext context) {
+        boolean empty = board.isEmpty(x, y);
+        if (empty)
+            context.check(board, x, y);
+
+        long res = 0;
         for (int d = 0; d < 4; d++) {
-            lsp(grid, checked, d, res);
+            res = lsp(board, x, y, context, d, res);
         }
+
+        if (empty)
+            context.uncheck(board, x, y);
         return res;
     }
 
     /**
      * Searches shapes in a line.
      *
-     * @param grid the grid.
-     * @param checked the last node of checked grids.
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param context the search context.
      * @param d the direction index.
-     * @param res the list of shapes.
+     * @param res the packed shape counts.
+     * @return the packed shape counts with the shapes in the line added.
      */
-    private static void lsp(Board.Grid grid, GridNode checked, int d, List<StoneShape> res) {
-        int[][] dsp = new int[2][2]; // dsp results
-        int[] ds = new int[]{d, Direction.reverse(d)}; // directions
-        boolean[] open = {dsp(grid, checked, ds[0], dsp[0]), dsp(grid, checked, ds[1], dsp[1])};
-        int row = dsp[0][0] + dsp[1][0] + 1; // row length
+    private static long lsp(Board board, int x, int y, SearchContext context, int d, long res) {
+        int dr = Direction.reverse(d);
+        int fwd = dsp(board, x, y, context, d);
+        int bwd = dsp(board, x, y, context, dr);
+        int row = firstRow(fwd) + firstRow(bwd) + 1; // row length
         if (row == 5) {
-            res.add(FIVE);
-            return;
+            return FIVE.addTo(res);
         }
         if (row > 5) {
-            res.add(OVERLINE);
-            return;
+            return OVERLINE.addTo(res);
         }
 
         for (int i = 0; i < 2; i++) {
-            int[] fwdDsp = dsp[i];
-            int[] bwdDsp = dsp[i ^ 1];
+            int fwdDsp = i == 0 ? fwd : bwd;
+            int bwdDsp = i == 0 ? bwd : fwd;
+            int fd = i == 0 ? d : dr;
             int total = row;
-            if (fwdDsp[1] != -1)
-                total += fwdDsp[1];
+            if (secondRow(fwdDsp) != -1)
+                total += secondRow(fwdDsp);
             if (total == 3) {
                 // total = 3, open forward and backward
                 // there's an empty grid and no row => Open Three
-                if (open[i] && bwdDsp[1] == 0) {
+                if (isOpen(fwdDsp) && secondRow(bwdDsp) == 0) {
                     // Check forbidden move
-                    Board.Grid fwdFirst = grid.adjacent(ds[i], fwdDsp[0] + 1);
-                    Board.Grid fwdSecond = fwdFirst.adjacent(ds[i], fwdDsp[1] + 1);
-                    Board.Grid bwd = grid.adjacent(ds[i ^ 1], bwdDsp[0] + 1);
-                    if (cfm(fwdFirst, checked) ||
-                            cfm(fwdSecond, checked) ||
-                            cfm(bwd, checked)) {
-                        return;
+                    res |= RECURSIVELY_CHECKED;
+                    int fwdFirst = firstRow(fwdDsp) + 1;
+                    int fwdSecond = fwdFirst + secondRow(fwdDsp) + 1;
+                    int bwdFirst = -(firstRow(bwdDsp) + 1);
+                    if (cfm(board, x + DELTA_X[fd] * fwdFirst, y + DELTA_Y[fd] * fwdFirst, context) ||
+                            cfm(board, x + DELTA_X[fd] * fwdSecond, y + DELTA_Y[fd] * fwdSecond, context) ||
+                            cfm(board, x + DELTA_X[fd] * bwdFirst, y + DELTA_Y[fd] * bwdFirst, context)) {
+                        return res;
                     }
 
-                    res.add(OPEN_THREE);
-                    return;
+                    return OPEN_THREE.addTo(res);
                 }
             } else if (total == 4) {
                 if (row != 4) {
-                    res.add(FOUR);
-                } else if (fwdDsp[1] == 0 && bwdDsp[1] <= 0) {
-                    res.add(FOUR);
-                    return;
+                    res = FOUR.addTo(res);
+                } else if (secondRow(fwdDsp) == 0 && secondRow(bwdDsp) <= 0) {
+                    return FOUR.addTo(res);
                 }
             }
         }
+        return res;
     }
 
     /**
-     * Checks whether there's a forbidden move in the grid.
+     * Checks whether there's a forbidden move in the grid,
+     * regarding the checked grids as Black.
+     * <p>
+     * The check recurses without a depth limit, as every level
+     * adds a checked grid. The results are memoized by the hash key
+     * of the position with the checked grids, so that a result
+     * is never reused once a stone is placed.
      *
-     * @param grid the grid.
-     * @param checked the last node of checked grids.
+     * @param board the board.
+     * @param x the x coordinate.
+     * @param y the y coordinate.
+     * @param context the search context.
      * @return whether there's a forbidden move.
      */
-    private static boolean cfm(Board.Grid grid, GridNode checked) {
-        if (FORBIDDEN_MOVE_MAX_CHECK_DEPTH == 1)
-            return false;
-        if (checked != null && (checked.index + 3 > FORBIDDEN_MOVE_MAX_CHECK_DEPTH || checked.search(grid)))
+    private static boolean cfm(Board board, int x, int y, SearchContext context) {
+        if (context.isChecked(y * board.size() + x))
             return false;
 
-        return checkForbiddenMove(searchShapes(grid, checked));
+        long key = board.hashKey() ^ context.checkedKey ^ Zobrist.keyHigh(StoneType.WHITE, x, y);
+        int result = context.cachedResult(key, board.size());
+        if (result != -1)
+            return result == 1;
+
+        boolean forbidden = checkForbiddenMove(countShapes(board, x, y, context));
+        context.cacheResult(key, board.size(), forbidden);
+        return forbidden;
     }
 
     /**
@@ -322,42 +494,63 @@ public final class RuleHelper {
      * second row and also calculates the length.
      * Between the two rows is one empty grid.
      *
-     * @param grid the grid, exclusive.
-     * @param checked the last node of checked grids.
+     * @param board the board.
+     * @param x the x coordinate of the grid, exclusive.
+     * @param y the y coordinate of the grid, exclusive.
+     * @param context the search context.
      * @param d the direction index.
-     * @param res an array of length 2 to store the result,
-     * in which the first element is the length of
-     * the first row, and the second element
-     * is the length of the second row (or -1 if no
-     * empty grid is reached).
-     * @return true if the shape is open in the direction,
-     * or else false.
+     * @return the packed result, in which the lowest byte is
+     * the length of the first row, the second byte is the length
+     * of the second row plus one (or 0 if no empty grid is reached),
+     * and bit 16 is set if the shape is open in the direction.
      */
-    private static boolean dsp(Board.Grid grid, GridNode checked, int d, int[] res) {
-        res[0] = 0;
-        res[1] = -1; // -1 if no empty grid is reached
+    private static int dsp(Board board, int x, int y, SearchContext context, int d) {
+        int size = board.size();
+        int dx = DELTA_X[d], dy = DELTA_Y[d];
+        int first = 0;
+        int second = -1; // -1 if no empty grid is reached
         int i = 0; // Increment when reaching an empty grid
         while (i < 2) {
-            grid = grid.adjacent(d);
-            if (grid != null) {
-                if (grid.stone() == StoneType.BLACK) {
-                    res[i]++; // Black
+            x += dx;
+            y += dy;
+            if (x >= 0 && x < size && y >= 0 && y < size) {
+                StoneType stone = board.stoneAt(x, y);
+                if (stone == StoneType.BLACK ||
+                        (stone == null && context.isChecked(y * size + x))) {
+                    // Black, or regard it as Black
+                    if (i == 0) first++;
+                    else second++;
                     continue;
-                } else if (grid.isEmpty()) {
-                    if (checked != null && checked.search(grid)) {
-                        res[i]++; // Regard it as Black
-                        continue;
-                    }
+                } else if (stone == null) {
                     i++; // Empty grid
                     if (i == 1)
-                        res[1] = 0;
+                        second = 0;
                     continue;
                 }
             }
-            return false; // White or Border
+            return dspResult(first, second, false); // White or Border
         }
-        return res[1] == 0 ||
-                ((grid = grid.adjacent(d)) == null || grid.stone() != StoneType.BLACK);
+        x += dx;
+        y += dy;
+        boolean open = second == 0 ||
+                x < 0 || x >= size || y < 0 || y >= size || board.stoneAt(x, y) != StoneType.BLACK;
+        return dspResult(first, second, open);
+    }
+
+    private static int dspResult(int first, int second, boolean open) {
+        return first | (second + 1) << 8 | (open ? 1 << 16 : 0);
+    }
+
+    private static int firstRow(int dsp) {
+        return dsp & 0xff;
+    }
+
+    private static int secondRow(int dsp) {
+        return (dsp >>> 8 & 0xff) - 1;
+    }
+
+    private static boolean isOpen(int dsp) {
+        return (dsp & 1 << 16) != 0;
     }
 
     public static void validateStandardOpening(Board.Grid grid, int index) throws IllegalMoveException {
@@ -377,29 +570,136 @@ public final class RuleHelper {
         }
     }
 
-    private static class GridNode {
+    /**
+     * Tells whether a move is allowed by the limits of the standard opening,
+     * as validated by {@link #validateStandardOpening(Board.Grid, int)}.
+     *
+     * @param index the move index.
+     * @param distToCenter the Chebyshev distance from the grid to the center.
+     * @return whether the move is allowed.
+     */
+    public static boolean isStandardOpeningMove(int index, int distToCenter) {
+        switch (index) {
+            case 1:
+                return distToCenter == 0;
+            case 2:
+                return distToCenter <= 1;
+            case 3:
+                return distToCenter <= 2;
+        }
+        return true;
+    }
+
+    /**
+     * A task classifying the empty grids in a range of rows.
+     */
+    private static class ClassifyTask extends RecursiveAction {
 
-        final Board.Grid value;
-        final GridNode prev;
-        final int index;
+        private static final long serialVersionUID = 1L;
 
-        GridNode(Board.Grid value, GridNode prev) {
-            this.value = value;
-            this.prev = prev;
-            this.index = prev == null ? 0 : prev.index + 1;
+        private final Board board;
+        private final ForbiddenMoveType[][] res;
+        private final int fromY, toY;
+
+        ClassifyTask(Board board, ForbiddenMoveType[][] res, int fromY, int toY) {
+            this.board = board;
+            this.res = res;
+            this.fromY = fromY;
+            this.toY = toY;
         }
 
-        boolean search(Board.Grid grid) {
-            for (GridNode cur = this; cur != null; cur = cur.prev) {
-                if (cur.value == grid) {
-                    return true;
+        @Override
+        protected void compute() {
+            if (toY - fromY > CLASSIFY_TASK_ROWS && getPool() != null) {
+                int mid = (fromY + toY) >>> 1;
+                invokeAll(new ClassifyTask(board, res, fromY, mid),
+                        new ClassifyTask(board, res, mid, toY));
+                return;
+            }
+            int size = board.size();
+            for (int y = fromY; y < toY; y++) {
+                for (int x = 0; x < size; x++) {
+                    if (board.isEmpty(x, y))
+                        res[y][x] = classifyForbiddenMove(countShapes(board, x, y));
                 }
             }
-            return false;
+        }
+    }
+
+    /**
+     * A SearchContext holds the thread-confined state of
+     * the forbidden move search, reused across calls.
+     */
+    private static class SearchContext {
+
+        private static final int CACHE_SIZE = 1 << 12;
+
+        /**
+         * The bitset of the checked grids, which are
+         * regarded as Black, indexed by y * size + x.
+         */
+        private long[] checked = new long[0];
+
+        /**
+         * The Zobrist key of Black stones in all the checked grids.
+         */
+        long checkedKey;
+
+        /**
+         * A direct-mapped cache of the forbidden move check results.
+         * As the Zobrist keys do not depend on the board size, and
+         * the context is shared by boards of all sizes, the size is
+         * stored along with the key.
+         */
+        private final long[] cacheKeys = new long[CACHE_SIZE];
+        private final byte[] cacheSizes = new byte[CACHE_SIZE];
+        private final byte[] cacheResults = new byte[CACHE_SIZE];
+
+        void reset(int size) {
+            int words = (size * size + 63) >>> 6;
+            if (checked.length < words) {
+                checked = new long[words];
+            } else {
+                for (int i = 0; i < words; i++) {
+                    checked[i] = 0;
+                }
+            }
+            checkedKey = 0;
+        }
+
+        boolean isChecked(int grid) {
+            return (checked[grid >>> 6] & 1L << grid) != 0;
+        }
+
+        void check(Board board, int x, int y) {
+            int grid = y * board.size() + x;
+            checked[grid >>> 6] |= 1L << grid;
+            checkedKey ^= Zobrist.key(StoneType.BLACK, x, y);
+        }
+
+        void uncheck(Board board, int x, int y) {
+            int grid = y * board.size() + x;
+            checked[grid >>> 6] &= ~(1L << grid);
+            checkedKey ^= Zobrist.key(StoneType.BLACK, x, y);
+        }
+
+        /**
+         * Gets a cached result.
+         *
+         * @param key the key.
+         * @param size the board size.
+         * @return 1 if forbidden, 0 if not, or -1 if absent.
+         */
+        int cachedResult(long key, int size) {
+            int i = (int) key & (CACHE_SIZE - 1);
+            return cacheKeys[i] == key && cacheSizes[i] == size ? cacheResults[i] : -1;
         }
 
-        GridNode next(Board.Grid grid) {
-            return new GridNode(grid, this);
+        void cacheResult(long key, int size, boolean forbidden) {
+            int i = (int) key & (CACHE_SIZE - 1);
+            cacheKeys[i] = key;
+            cacheSizes[i] = (byte) size;
+            cacheResults[i] = (byte) (forbidden ? 1 : 0);
         }
     }
 }
@@ -34,4 +34,15 @@ public class GomokuPro implements Opening {
     public void processChoice(Game.Controller controller, int index, int choice, Side side) {
 
     }
+
+    @Override
+    public boolean allowsMove(int index, int distToCenter) {
+        switch (index) {
+            case 1:
+                return distToCenter == 0;
+            case 3:
+                return distToCenter >= 3;
+        }
+        return true;
+    }
 }
@@ -33,4 +33,9 @@ public class RIF implements Opening {
     public void processChoice(Game.Controller controller, int index, int choice, Side side) {
         if (choice == 0) controller.swap();
     }
+
+    @Override
+    public boolean allowsMove(int index, int distToCenter) {
+        return RuleHelper.isStandardOpeningMove(index, distToCenter);
+    }
 }
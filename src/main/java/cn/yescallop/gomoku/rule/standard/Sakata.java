@@ -40,4 +40,15 @@ public class Sakata implements Opening {
     public void processChoice(Game.Controller controller, int index, int choice, Side side) {
         if (choice == 0) controller.swap();
     }
+
+    @Override
+    public boolean allowsMove(int index, int distToCenter) {
+        switch (index) {
+            case 4:
+                return distToCenter <= 3;
+            case 5:
+                return distToCenter <= 4;
+        }
+        return RuleHelper.isStandardOpeningMove(index, distToCenter);
+    }
 }
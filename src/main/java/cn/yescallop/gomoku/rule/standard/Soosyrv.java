@@ -53,4 +53,9 @@ public class Soosyrv implements Opening {
             controller.requestMultipleMoves(moveCount);
         }
     }
+
+    @Override
+    public boolean allowsMove(int index, int distToCenter) {
+        return RuleHelper.isStandardOpeningMove(index, distToCenter);
+    }
 }
@@ -50,4 +50,10 @@ public class Tarannikov implements Opening {
             controller.swap();
         }
     }
+
+    @Override
+    public boolean allowsMove(int index, int distToCenter) {
+        // The n-th move within the central (2n-1)x(2n-1) area
+        return index > 5 || distToCenter < index;
+    }
 }
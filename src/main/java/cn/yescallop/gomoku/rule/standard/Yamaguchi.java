@@ -40,4 +40,9 @@ public class Yamaguchi implements Opening {
             controller.swap();
         }
     }
+
+    @Override
+    public boolean allowsMove(int index, int distToCenter) {
+        return RuleHelper.isStandardOpeningMove(index, distToCenter);
+    }
 }